@@ -0,0 +1,127 @@
+package com.example.tgbot.bot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Сборка исходящих сообщений: экранирование MarkdownV2, выравнивание текста,
+ * клавиатуры и полный рендер шаблона из истории сессии.
+ * <p>
+ * {@link #escapeMarkdownLegacy} — прежнее экранирование (HashSet на вызов, упаковка символов)
+ * для сравнения с {@link MarkdownV2#escape}, {@link #renderMainMenuLegacy} — меню с клавиатурой,
+ * собранной заново, для сравнения с общими клавиатурами. Корректность экранирования проверяет MarkdownV2Test.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageRenderingBenchmark {
+
+    /** Длина промпта: короткий запрос и промпт на пределе в 10000 символов. */
+    @Param({"64", "10000"})
+    public int promptLength;
+
+    private String prompt;
+    private String menuText;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(promptLength);
+        String sample = "Кот в шляпе (16:9) идёт по мосту — закат, 4k! ";
+        while (sb.length() < promptLength) {
+            sb.append(sample);
+        }
+        prompt = sb.substring(0, promptLength);
+        menuText = "\uD83D\uDCFD️Выберите удобный формат\uD83D\uDCFD️\nи продолжите";
+    }
+
+    @Benchmark
+    public String escapeMarkdown() {
+        return MarkdownV2.escape(prompt);
+    }
+
+    @Benchmark
+    public String escapeMarkdownLegacy() {
+        return legacyEscape(prompt);
+    }
+
+    @Benchmark
+    public String centerText() {
+        return MessageRenderer.centerText(menuText, menuText.length() + 20);
+    }
+
+    @Benchmark
+    public SendMessage renderMainMenu() {
+        return MessageRenderer.render(42L, MessageTemplate.MAIN_MENU);
+    }
+
+    @Benchmark
+    public SendMessage renderMainMenuLegacy() {
+        SendMessage message = new SendMessage("42", "Главное меню");
+        message.setReplyMarkup(legacyMainMenuKeyboard());
+        return message;
+    }
+
+    @Benchmark
+    public SendMessage renderGenerationDone() {
+        return MessageRenderer.render(42L, MessageTemplate.GENERATION_DONE, prompt);
+    }
+
+    /**
+     * Клавиатура главного меню, как она собиралась на каждое сообщение до общих экземпляров.
+     */
+    private static InlineKeyboardMarkup legacyMainMenuKeyboard() {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        rows.add(List.of(legacyButton("Сгенерировать видео по тексту", "main_generate_text")));
+        rows.add(List.of(legacyButton("Сгенерировать видео по картинке", "main_generate_image")));
+        rows.add(List.of(legacyButton("Пополнить баланс", "main_recharge")));
+        rows.add(List.of(legacyButton("Поддержка", "menu_back")));
+        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
+        markup.setKeyboard(rows);
+        return markup;
+    }
+
+    private static InlineKeyboardButton legacyButton(String text, String callbackData) {
+        InlineKeyboardButton button = new InlineKeyboardButton();
+        button.setText(text);
+        button.setCallbackData(callbackData);
+        return button;
+    }
+
+    /**
+     * Экранирование до перехода на {@link MarkdownV2}, без изменений (включая двойной слэш).
+     */
+    private static String legacyEscape(String str) {
+        Set<Character> charsToEscape = new HashSet<>(Arrays.asList('_', '*', '[', ']', '(', ')', '~', '`', '>' , '#', '+', '-', '=', '|', '{', '}', '.', '!'));
+        StringBuilder sb = new StringBuilder();
+        for (char c : str.toCharArray()) {
+            if (charsToEscape.contains(c)) {
+                sb.append("\\\\");
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.tgbot.bot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Разбор тела вебхука, как в {@link com.example.tgbot.controllers.WebhookController}, против
+ * прежнего пути: {@code @RequestBody Update} из потока и сериализация апдейта обратно в JSON
+ * ради debug-лога на каждый запрос, даже при выключенном DEBUG.
+ * Аллокации на апдейт: -Djmh.args="UpdateParsing -prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class UpdateParsingBenchmark {
+
+    private static final String CALLBACK_UPDATE = """
+            {"update_id":100000001,
+             "callback_query":{"id":"4382bfdwdsb323b2d9","chat_instance":"-7654321",
+               "from":{"id":123456789,"is_bot":false,"first_name":"Иван","language_code":"ru"},
+               "message":{"message_id":42,"date":1700000000,
+                 "chat":{"id":123456789,"type":"private","first_name":"Иван"},
+                 "from":{"id":987654321,"is_bot":true,"first_name":"Sora"},
+                 "text":"Главное меню"},
+               "data":"main_generate_text"}}
+            """;
+
+    private static final String TEXT_UPDATE = """
+            {"update_id":100000002,
+             "message":{"message_id":43,"date":1700000001,
+               "chat":{"id":123456789,"type":"private","first_name":"Иван"},
+               "from":{"id":123456789,"is_bot":false,"first_name":"Иван","language_code":"ru"},
+               "text":"Кот в шляпе идёт по мосту на закате, камера медленно отъезжает"}}
+            """;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Отдельный маппер контроллера, которым раньше писался debug-лог
+    private final ObjectMapper legacyMapper = new ObjectMapper();
+    private byte[] callbackBody;
+    private byte[] textBody;
+
+    @Setup
+    public void setUp() {
+        callbackBody = CALLBACK_UPDATE.getBytes(StandardCharsets.UTF_8);
+        textBody = TEXT_UPDATE.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String legacyCallback() throws Exception {
+        return legacy(callbackBody);
+    }
+
+    @Benchmark
+    public String legacyText() throws Exception {
+        return legacy(textBody);
+    }
+
+    @Benchmark
+    public Update parseCallback() throws Exception {
+        return objectMapper.readValue(callbackBody, Update.class);
+    }
+
+    @Benchmark
+    public Update parseText() throws Exception {
+        return objectMapper.readValue(textBody, Update.class);
+    }
+
+    private String legacy(byte[] body) throws Exception {
+        Update update = objectMapper.readValue(new ByteArrayInputStream(body), Update.class);
+        return legacyMapper.writeValueAsString(update);
+    }
+}
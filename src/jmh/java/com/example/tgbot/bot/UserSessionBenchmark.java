@@ -0,0 +1,62 @@
+package com.example.tgbot.bot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * История сообщений сессии и её сериализация для внешнего хранилища.
+ * Расход памяти на сессию смотреть с профайлером: -Djmh.args="UserSession -prof gc".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class UserSessionBenchmark {
+
+    private UserSession session;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        session = new UserSession();
+        session.setState(BotState.INITIAL);
+        session.setSelectedFormat("16:9");
+        for (int i = 0; i < 5; i++) {
+            session.putMessageHistory(MessageTemplate.GENERATION_STARTED, String.valueOf(i));
+        }
+        encoded = UserSessionCodec.encode(session);
+    }
+
+    /**
+     * Типичный цикл «показали меню — пользователь нажал назад».
+     */
+    @Benchmark
+    public HistoryEntry putAndGoBack() {
+        session.putMessageHistory(MessageTemplate.MAIN_MENU, "Главное меню");
+        session.putMessageHistory(MessageTemplate.DESCRIPTION_PROMPT, "3");
+        return session.getLastMessageBeforeCall();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return UserSessionCodec.encode(session);
+    }
+
+    @Benchmark
+    public UserSession decode() {
+        return UserSessionCodec.decode(encoded);
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.tgbot.service;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@link RateLimiterService#tryConsume} под конкуренцией потоков: один горячий
+ * пользователь (все потоки бьют в один слот) и много разных пользователей
+ * (вставки, рост и перестройка сегментов). Отдельно — память на пользователя.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(8)
+public class RateLimiterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Limiter {
+        RateLimiterService service;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            service = new RateLimiterService(5, Duration.ofMinutes(1));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Users {
+        long next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // У каждого потока свой диапазон id, чтобы потоки не делили пользователей
+            next = Thread.currentThread().getId() << 40;
+        }
+    }
+
+    /**
+     * Счётчик в отчёте JMH рядом со временем: байт в куче на одного пользователя.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long bytesPerUser;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerUser = 0;
+        }
+    }
+
+    @Benchmark
+    public boolean hotUser(Limiter limiter) {
+        return limiter.service.tryConsume(42L);
+    }
+
+    @Benchmark
+    public boolean distinctUsers(Limiter limiter, Users users) {
+        return limiter.service.tryConsume(++users.next);
+    }
+
+    /**
+     * Миллион пользователей в таблице. Результат — счётчик bytesPerUser: размер графа
+     * объектов лимитера по JOL (сегменты, таблицы, массивы слотов), делённый на число
+     * пользователей. Время в отчёте — заполнение вместе с обходом JOL, оно вторично.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public RateLimiterService fillMillionUsers(Footprint footprint) {
+        RateLimiterService service = new RateLimiterService(5, Duration.ofMinutes(1));
+        for (long userId = 1; userId <= 1_000_000; userId++) {
+            service.tryConsume(userId);
+        }
+        footprint.bytesPerUser = GraphLayout.parseInstance(service).totalSize() / service.trackedUsers();
+        return service;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.web.RecordInfoResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Разбор ответа recordInfo: сам ответ и вложенная строка resultJson со ссылкой на видео.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RecordInfoParsingBenchmark {
+
+    private static final String RECORD_INFO = """
+            {"code":200,"message":"success","data":{
+              "taskId":"ee603959debb48d08d5d8f3a5ff7f2a6","model":"sora-2-text-to-video","state":"success",
+              "param":"{\\"model\\":\\"sora-2-text-to-video\\",\\"input\\":{\\"prompt\\":\\"cat\\",\\"aspect_ratio\\":\\"landscape\\"}}",
+              "resultJson":"{\\"resultUrls\\":[\\"https://tempfile.aiquickdraw.com/s/ee603959debb48d08d5d8f3a5ff7f2a6.mp4\\"],\\"resultWaterMarkUrls\\":[\\"https://tempfile.aiquickdraw.com/s/ee603959debb48d08d5d8f3a5ff7f2a6_wm.mp4\\"]}",
+              "failCode":null,"failMsg":null,
+              "completeTime":1700000180000,"createTime":1700000000000,"updateTime":1700000180000}}
+            """;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private VideoGenerationService videoGenerationService;
+    private RecordInfoResponse response;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Для разбора нужен только ObjectMapper
+        videoGenerationService = new VideoGenerationService(objectMapper, null, null, null, null);
+        response = objectMapper.readValue(RECORD_INFO, RecordInfoResponse.class);
+    }
+
+    @Benchmark
+    public String extractUrl() {
+        return videoGenerationService.extractUrlFromRecordInfo(response);
+    }
+
+    @Benchmark
+    public String parseAndExtractUrl() throws Exception {
+        return videoGenerationService.extractUrlFromRecordInfo(objectMapper.readValue(RECORD_INFO, RecordInfoResponse.class));
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.tgbot.bot;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+
+/**
+ * Сессии в памяти с вытеснением по времени простоя и по размеру (W-TinyLFU в Caffeine).
+ * Хиты, промахи и вытеснения доступны в метриках cache.* с тегом cache=bot.sessions.
+ */
+@Component
+@ConditionalOnProperty(name = "telegram.bot.sessions.store", havingValue = "memory", matchIfMissing = true)
+public class CaffeineSessionStore implements SessionStore {
+
+    private final Cache<Long, UserSession> sessions;
+
+    public CaffeineSessionStore(MeterRegistry meterRegistry,
+                                @Value("${telegram.bot.sessions.idle-ttl:24h}") Duration idleTtl,
+                                @Value("${telegram.bot.sessions.max-size:100000}") long maxSize) {
+        this.sessions = Caffeine.newBuilder()
+                .expireAfterAccess(idleTtl)
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, sessions, "bot.sessions");
+    }
+
+    @Override
+    public UserSession get(Long chatId) {
+        return sessions.get(chatId, id -> new UserSession(BotState.INITIAL, null));
+    }
+
+    @Override
+    public void put(Long chatId, UserSession session) {
+        sessions.put(chatId, session);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Раздаёт апдейты по «почтовым ящикам» чатов: апдейты одного чата выполняются
+ * строго по очереди, разные чаты — параллельно. Ящик существует, только пока
+ * в нём есть работа, и ограничен по глубине.
+ * <p>
+ * Через ящик идёт и любая другая работа с сессией чата вне обработки апдейта
+ * (итог доставки видео, возврат генерации) — см. {@link #dispatchInternal}.
+ */
+@Component
+@Slf4j
+public class ChatUpdateDispatcher {
+
+    private final Executor executor;
+    private final int maxQueueDepth;
+    private final Map<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter acceptedCounter;
+    private final Counter rejectedCounter;
+    private final Counter inlineCounter;
+
+    public ChatUpdateDispatcher(@Qualifier("updateExecutor") Executor executor,
+                                @Value("${telegram.bot.dispatcher.max-queue-per-chat:10}") int maxQueueDepth,
+                                MeterRegistry meterRegistry) {
+        this.executor = executor;
+        this.maxQueueDepth = maxQueueDepth;
+        this.acceptedCounter = meterRegistry.counter("bot.dispatcher.updates", "result", "accepted");
+        this.rejectedCounter = meterRegistry.counter("bot.dispatcher.updates", "result", "rejected");
+        this.inlineCounter = meterRegistry.counter("bot.dispatcher.updates", "result", "inline");
+        meterRegistry.gauge("bot.dispatcher.mailboxes", mailboxes, Map::size);
+        meterRegistry.gauge("bot.dispatcher.queued", queued);
+    }
+
+    /**
+     * Ставит задачу в очередь чата.
+     *
+     * @return false, если очередь чата переполнена и задача отброшена
+     */
+    public boolean dispatch(long chatId, Runnable task) {
+        return enqueue(chatId, task, true);
+    }
+
+    /**
+     * Ставит в очередь чата работу самого бота. Она не отбрасывается по глубине очереди:
+     * её потеря означала бы недоставленный итог уже оплаченной генерации.
+     */
+    public void dispatchInternal(long chatId, Runnable task) {
+        enqueue(chatId, task, false);
+    }
+
+    private boolean enqueue(long chatId, Runnable task, boolean bounded) {
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(chatId, Mailbox::new);
+            synchronized (mailbox) {
+                if (mailbox.retired) {
+                    // Ящик только что закрылся после опустошения — берём новый
+                    continue;
+                }
+                if (bounded && mailbox.tasks.size() >= maxQueueDepth) {
+                    rejectedCounter.increment();
+                    return false;
+                }
+                mailbox.tasks.add(task);
+                queued.incrementAndGet();
+                acceptedCounter.increment();
+                if (mailbox.running) {
+                    return true;
+                }
+                mailbox.running = true;
+            }
+            schedule(mailbox);
+            return true;
+        }
+    }
+
+    /**
+     * Выполняет задачу прямо в вызывающем потоке, если у чата нет ни очереди, ни работающего обработчика.
+     * Апдейты, пришедшие в этот чат во время выполнения, встают в очередь и обрабатываются после неё.
+     *
+     * @return false, если чат занят и задача не выполнялась
+     */
+    public boolean tryRunInline(long chatId, Runnable task) {
+        Mailbox mailbox;
+        while (true) {
+            mailbox = mailboxes.computeIfAbsent(chatId, Mailbox::new);
+            synchronized (mailbox) {
+                if (mailbox.retired) {
+                    continue;
+                }
+                if (mailbox.running) {
+                    return false;
+                }
+                mailbox.running = true;
+                break;
+            }
+        }
+        inlineCounter.increment();
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("Unhandled exception while processing update of chat {}", chatId, e);
+        } finally {
+            boolean pending;
+            synchronized (mailbox) {
+                pending = !mailbox.tasks.isEmpty();
+                if (!pending) {
+                    retire(mailbox);
+                }
+            }
+            if (pending) {
+                schedule(mailbox);
+            }
+        }
+        return true;
+    }
+
+    private void schedule(Mailbox mailbox) {
+        try {
+            executor.execute(() -> drain(mailbox));
+        } catch (RejectedExecutionException e) {
+            log.error("Executor rejected mailbox of chat {}, dropping its queued updates", mailbox.chatId, e);
+            synchronized (mailbox) {
+                queued.addAndGet(-mailbox.tasks.size());
+                mailbox.tasks.clear();
+                retire(mailbox);
+            }
+        }
+    }
+
+    private void drain(Mailbox mailbox) {
+        while (true) {
+            Runnable next;
+            synchronized (mailbox) {
+                next = mailbox.tasks.poll();
+                if (next == null) {
+                    retire(mailbox);
+                    return;
+                }
+            }
+            queued.decrementAndGet();
+            try {
+                next.run();
+            } catch (Exception e) {
+                log.error("Unhandled exception while processing update of chat {}", mailbox.chatId, e);
+            }
+        }
+    }
+
+    private void retire(Mailbox mailbox) {
+        mailbox.running = false;
+        mailbox.retired = true;
+        mailboxes.remove(mailbox.chatId, mailbox);
+    }
+
+    private static final class Mailbox {
+        private final long chatId;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+        private boolean retired;
+
+        Mailbox(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+}
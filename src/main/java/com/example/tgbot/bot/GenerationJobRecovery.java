@@ -0,0 +1,48 @@
+package com.example.tgbot.bot;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.service.GenerationJobService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+
+/**
+ * Поднимает незавершённые задачи из generation_jobs, чья аренда истекла (реплика упала
+ * или перезапущена): продолжает опрос RUNNING, доставляет SUCCEEDED (видео готово, но не отправлено)
+ * и возвращает генерацию за PENDING, до Kie.ai не дошедшие. Задачи живых реплик не трогаются,
+ * поэтому rolling restart не приводит к повторному опросу и повторной отправке видео.
+ * <p>
+ * Проверка идёт при старте и по расписанию: задачи упавшей реплики заберёт любая живая.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class GenerationJobRecovery {
+
+    private final GenerationJobService generationJobService;
+    private final SoraVideoBot soraVideoBot;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${telegram.bot.jobs.recovery-interval-ms:60000}",
+            initialDelayString = "${telegram.bot.jobs.recovery-interval-ms:60000}")
+    public void resumeExpiredJobs() {
+        List<GenerationJob> jobs = generationJobService.claimExpiredJobs();
+        if (jobs.isEmpty()) {
+            return;
+        }
+        log.info("Resuming {} generation jobs with expired leases", jobs.size());
+        for (GenerationJob job : jobs) {
+            try {
+                soraVideoBot.resumeGeneration(job);
+            } catch (Exception e) {
+                log.error("Failed to resume generation job {}", job.getCorrelationId(), e);
+            }
+        }
+    }
+}
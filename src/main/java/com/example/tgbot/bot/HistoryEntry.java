@@ -0,0 +1,27 @@
+package com.example.tgbot.bot;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Запись истории сообщений: шаблон, подставленные аргументы и порядковый номер в сессии.
+ * Аргументы хранятся неизменяемым списком, поэтому equals и hashCode записи сравнивают их по значению.
+ */
+public record HistoryEntry(MessageTemplate template, List<String> args, long seq) {
+
+    public HistoryEntry(MessageTemplate template, String[] args, long seq) {
+        // Аргументы шаблона могут быть null, List.of их не принимает
+        this(template, args == null || args.length == 0 ? List.of()
+                : Collections.unmodifiableList(Arrays.asList(args.clone())), seq);
+    }
+
+    public HistoryEntry {
+        args = args == null ? List.of() : args;
+    }
+
+    String[] argsArray() {
+        return args.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,328 @@
+package com.example.tgbot.bot;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
+import org.telegram.telegrambots.meta.api.objects.File;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+
+/**
+ * Приём картинок пользователя для генерации по изображению.
+ * <ol>
+ *     <li>результат GetFile кэшируется по file_unique_id — повторная отправка той же картинки
+ *     не ходит в Bot API;</li>
+ *     <li>файл скачивается один раз потоком прямо на диск, SHA-256 считается на лету;</li>
+ *     <li>одинаковые картинки (пересланные, загруженные заново) по хэшу сводятся к одному файлу;</li>
+ *     <li>Kie.ai получает короткоживущую ссылку на {@code /images/{name}}, подписанную HMAC,
+ *     поэтому адрес с токеном бота никуда не уходит.</li>
+ * </ol>
+ * Файлы живут retention и удаляются по расписанию. Ссылка, выданная из кэша, всегда
+ * переживает файл: retention не меньше stored-cache-ttl + url-ttl.
+ * <p>
+ * Метрики: bot.image.ingestion (время, тег result: cached, downloaded, deduplicated, failed),
+ * bot.images.file-paths и bot.images.stored (кэши).
+ */
+@Component
+@Slf4j
+public class ImageIngestion {
+
+    private static final Pattern IMAGE_NAME = Pattern.compile("[0-9a-f]{64}\\.(jpg|png|webp)");
+    private static final Map<String, String> EXTENSIONS = Map.of(
+            "jpg", "jpg", "jpeg", "jpg", "png", "png", "webp", "webp");
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int MIN_SIGNING_KEY_BYTES = 32;
+
+    private final TelegramApiClient telegramApiClient;
+    private final MeterRegistry meterRegistry;
+    private final Path storageDir;
+    private final String publicBaseUrl;
+    private final Duration urlTtl;
+    private final Duration retention;
+    private final long maxBytes;
+    private final Mac hmacPrototype;
+    /** GetFile по file_unique_id: Telegram гарантирует ссылку на скачивание не меньше часа. */
+    private final AsyncCache<String, File> files;
+    /** Имя сохранённого файла по file_unique_id; заодно склеивает одновременные загрузки одной картинки. */
+    private final AsyncCache<String, String> stored;
+
+    public ImageIngestion(TelegramApiClient telegramApiClient,
+                          MeterRegistry meterRegistry,
+                          @Value("${telegram.bot.images.storage-dir}") Path storageDir,
+                          @Value("${telegram.bot.images.public-base-url}") String publicBaseUrl,
+                          @Value("${telegram.bot.images.signing-key:}") String signingKey,
+                          @Value("${telegram.bot.images.require-signing-key:false}") boolean requireSigningKey,
+                          @Value("${telegram.bot.images.url-ttl:1h}") Duration urlTtl,
+                          @Value("${telegram.bot.images.retention:2h}") Duration retention,
+                          @Value("${telegram.bot.images.file-path-cache-ttl:50m}") Duration filePathCacheTtl,
+                          @Value("${telegram.bot.images.stored-cache-ttl:30m}") Duration storedCacheTtl,
+                          @Value("${telegram.bot.images.cache-max-size:10000}") long cacheMaxSize,
+                          @Value("${telegram.bot.images.max-bytes:20971520}") long maxBytes) {
+        this.telegramApiClient = telegramApiClient;
+        this.meterRegistry = meterRegistry;
+        this.storageDir = storageDir;
+        this.publicBaseUrl = publicBaseUrl.endsWith("/") ? publicBaseUrl.substring(0, publicBaseUrl.length() - 1) : publicBaseUrl;
+        this.urlTtl = urlTtl;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+        if (retention.compareTo(storedCacheTtl.plus(urlTtl)) < 0) {
+            throw new IllegalArgumentException("telegram.bot.images.retention must be at least stored-cache-ttl + url-ttl");
+        }
+
+        byte[] key;
+        if (signingKey.isEmpty() && requireSigningKey) {
+            // Со случайным ключом ссылку, подписанную одной репликой, отвергнут остальные
+            throw new IllegalStateException("telegram.bot.images.signing-key is required when require-signing-key is set");
+        }
+        if (signingKey.isEmpty()) {
+            // Ключ живёт до рестарта: ссылки, выданные прошлым процессом, перестают действовать
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            log.info("No telegram.bot.images.signing-key configured, using a random per-process key");
+        } else {
+            key = signingKey.getBytes(StandardCharsets.UTF_8);
+            if (key.length < MIN_SIGNING_KEY_BYTES) {
+                throw new IllegalArgumentException("telegram.bot.images.signing-key must be at least "
+                        + MIN_SIGNING_KEY_BYTES + " bytes");
+            }
+        }
+        try {
+            this.hmacPrototype = Mac.getInstance(HMAC_ALGORITHM);
+            this.hmacPrototype.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+
+        this.files = Caffeine.newBuilder()
+                .expireAfterWrite(filePathCacheTtl)
+                .maximumSize(cacheMaxSize)
+                .recordStats()
+                .buildAsync();
+        this.stored = Caffeine.newBuilder()
+                .expireAfterWrite(storedCacheTtl)
+                .maximumSize(cacheMaxSize)
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, files.synchronous(), "bot.images.file-paths");
+        CaffeineCacheMetrics.monitor(meterRegistry, stored.synchronous(), "bot.images.stored");
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        Files.createDirectories(storageDir);
+    }
+
+    /**
+     * Сохраняет картинку у себя и возвращает подписанную ссылку на неё для Kie.ai.
+     * Сетевые вызовы неблокирующие, работа с диском — на boundedElastic.
+     */
+    public Mono<String> ingest(String fileId, String fileUniqueId) {
+        long started = System.nanoTime();
+        boolean cached = stored.getIfPresent(fileUniqueId) != null;
+        return Mono.fromFuture(() -> stored.get(fileUniqueId, (key, executor) -> store(fileId, key).toFuture()))
+                .doOnSuccess(name -> {
+                    if (cached) {
+                        timer("cached").record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                    }
+                })
+                .map(this::signedUrl);
+    }
+
+    /**
+     * Проверяет подпись ссылки из {@link #signedUrl}. Блокирующий вызов (обращение к диску).
+     *
+     * @return файл картинки, если ссылка подлинная, не истекла и файл ещё не удалён
+     */
+    public Optional<Path> resolve(String name, long expires, String signature) {
+        if (signature == null || !IMAGE_NAME.matcher(name).matches()
+                || expires < Instant.now().getEpochSecond()) {
+            return Optional.empty();
+        }
+        byte[] expected = sign(name, expires).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII))) {
+            return Optional.empty();
+        }
+        Path file = storageDir.resolve(name);
+        return Files.isRegularFile(file) ? Optional.of(file) : Optional.empty();
+    }
+
+    /**
+     * Удаляет файлы старше retention и забывает их в кэше.
+     */
+    @Scheduled(fixedDelayString = "${telegram.bot.images.sweep-interval-ms:600000}")
+    void sweep() {
+        FileTime threshold = FileTime.from(Instant.now().minus(retention));
+        Set<String> deleted = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(storageDir)) {
+            for (Path file : entries) {
+                try {
+                    if (Files.getLastModifiedTime(file).compareTo(threshold) < 0) {
+                        Files.deleteIfExists(file);
+                        deleted.add(file.getFileName().toString());
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to sweep stored image {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to sweep image storage {}", storageDir, e);
+            return;
+        }
+        if (!deleted.isEmpty()) {
+            stored.synchronous().asMap().values().removeIf(deleted::contains);
+            log.debug("Swept {} stored images", deleted.size());
+        }
+    }
+
+    private Mono<String> store(String fileId, String fileUniqueId) {
+        long started = System.nanoTime();
+        return Mono.fromFuture(() -> files.get(fileUniqueId, (key, executor) -> getFile(fileId).toFuture()))
+                .flatMap(this::download)
+                .doOnError(e -> timer("failed").record(System.nanoTime() - started, TimeUnit.NANOSECONDS))
+                .doOnSuccess(result -> timer(result.deduplicated() ? "deduplicated" : "downloaded")
+                        .record(System.nanoTime() - started, TimeUnit.NANOSECONDS))
+                .map(StoredImage::name);
+    }
+
+    private Mono<File> getFile(String fileId) {
+        GetFile request = new GetFile();
+        request.setFileId(fileId);
+        return telegramApiClient.execute(request);
+    }
+
+    private Mono<StoredImage> download(File file) {
+        if (file.getFilePath() == null) {
+            // Bot API не отдаёт файлы больше 20 МБ
+            return Mono.error(new IllegalArgumentException("Telegram returned no file_path for " + file.getFileUniqueId()));
+        }
+        if (file.getFileSize() != null && file.getFileSize() > maxBytes) {
+            return Mono.error(new IllegalArgumentException("Image is too large: " + file.getFileSize() + " bytes"));
+        }
+        String extension = extensionOf(file.getFilePath());
+        if (extension == null) {
+            return Mono.error(new IllegalArgumentException("Unsupported image type: " + file.getFilePath()));
+        }
+        return Mono.fromCallable(() -> Files.createTempFile(storageDir, "ingest-", ".part"))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(temp -> {
+                    MessageDigest digest = sha256();
+                    AtomicLong received = new AtomicLong();
+                    Flux<DataBuffer> content = telegramApiClient.downloadFile(file.getFilePath())
+                            .handle((DataBuffer buffer, SynchronousSink<DataBuffer> sink) -> {
+                                // file_size в ответе GetFile необязателен, поэтому лимит проверяется по принятым байтам
+                                if (received.addAndGet(buffer.readableByteCount()) > maxBytes) {
+                                    DataBufferUtils.release(buffer);
+                                    sink.error(new IllegalArgumentException("Image is too large: more than " + maxBytes + " bytes"));
+                                    return;
+                                }
+                                try (DataBuffer.ByteBufferIterator it = buffer.readableByteBuffers()) {
+                                    it.forEachRemaining(digest::update);
+                                }
+                                sink.next(buffer);
+                            });
+                    // write освобождает буферы по мере записи: картинка целиком в памяти не собирается
+                    return DataBufferUtils.write(content, temp)
+                            .then(Mono.fromCallable(() -> publish(temp, HexFormat.of().formatHex(digest.digest()) + "." + extension))
+                                    .subscribeOn(Schedulers.boundedElastic()))
+                            .doOnError(e -> deleteQuietly(temp));
+                });
+    }
+
+    /**
+     * Переносит скачанный файл под имя по хэшу содержимого. Если такая картинка уже есть,
+     * скачанная копия удаляется, а у существующей продлевается срок жизни.
+     */
+    private StoredImage publish(Path temp, String name) throws IOException {
+        Path target = storageDir.resolve(name);
+        if (Files.exists(target)) {
+            Files.delete(temp);
+            Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+            return new StoredImage(name, true);
+        }
+        // Одновременная загрузка той же картинки заменит файл тем же содержимым
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return new StoredImage(name, false);
+    }
+
+    String signedUrl(String name) {
+        long expires = Instant.now().plus(urlTtl).getEpochSecond();
+        return publicBaseUrl + "/images/" + name + "?expires=" + expires + "&sig=" + sign(name, expires);
+    }
+
+    private String sign(String name, long expires) {
+        try {
+            // Mac не потокобезопасен: у каждого вызова своя копия с уже заданным ключом
+            Mac mac = (Mac) hmacPrototype.clone();
+            return HexFormat.of().formatHex(mac.doFinal((name + ":" + expires).getBytes(StandardCharsets.US_ASCII)));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String extensionOf(String filePath) {
+        int dot = filePath.lastIndexOf('.');
+        return dot < 0 ? null : EXTENSIONS.get(filePath.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete {}: {}", file, e.getMessage());
+        }
+    }
+
+    private Timer timer(String result) {
+        return Timer.builder("bot.image.ingestion")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private record StoredImage(String name, boolean deduplicated) {
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.tgbot.bot;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+
+
+/**
+ * Сессии в таблице chat_sessions — общие для всех реплик бота.
+ * Перед БД стоит near-cache уже разобранных сессий. Апдейты одного чата могут приходить
+ * на разные реплики, поэтому запись из near-cache не отдаётся без сверки версии с БД:
+ * совпала — сессия из кэша, нет — данные приходят тем же запросом.
+ * Запись идёт с проверкой версии: если другая реплика успела изменить сессию, наша запись
+ * отбрасывается, а near-cache сбрасывается, чтобы следующий апдейт прочитал актуальное состояние.
+ */
+@Component
+@ConditionalOnProperty(name = "telegram.bot.sessions.store", havingValue = "jdbc")
+@Slf4j
+public class JdbcSessionStore implements SessionStore {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Cache<Long, VersionedSession> nearCache;
+    private final Counter conflictCounter;
+
+    public JdbcSessionStore(JdbcTemplate jdbcTemplate,
+                            MeterRegistry meterRegistry,
+                            @Value("${telegram.bot.sessions.near-cache-ttl:5m}") Duration nearCacheTtl,
+                            @Value("${telegram.bot.sessions.max-size:100000}") long maxSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.nearCache = Caffeine.newBuilder()
+                .expireAfterWrite(nearCacheTtl)
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        this.conflictCounter = meterRegistry.counter("bot.sessions.write.conflicts");
+        CaffeineCacheMetrics.monitor(meterRegistry, nearCache, "bot.sessions");
+    }
+
+    @Override
+    public UserSession get(Long chatId) {
+        VersionedSession cached = nearCache.getIfPresent(chatId);
+        VersionedSession current = cached == null ? load(chatId) : revalidate(chatId, cached);
+        if (current != cached) {
+            nearCache.put(chatId, current);
+        }
+        return current.session();
+    }
+
+    @Override
+    public void put(Long chatId, UserSession session) {
+        VersionedSession cached = nearCache.getIfPresent(chatId);
+        long expectedVersion;
+        if (cached != null && cached.session() == session) {
+            expectedVersion = cached.version();
+        } else {
+            // Запись вытеснили из near-cache между чтением и записью — сверяемся с текущей версией в БД
+            expectedVersion = currentVersion(chatId);
+        }
+        byte[] data = UserSessionCodec.encode(session);
+        if (write(chatId, data, expectedVersion)) {
+            nearCache.put(chatId, new VersionedSession(session, expectedVersion + 1));
+        } else {
+            conflictCounter.increment();
+            log.warn("Session of chat {} was modified concurrently (expected version {}), discarding local changes",
+                    chatId, expectedVersion);
+            nearCache.invalidate(chatId);
+        }
+    }
+
+    private boolean write(Long chatId, byte[] data, long expectedVersion) {
+        if (expectedVersion == 0) {
+            try {
+                jdbcTemplate.update("INSERT INTO chat_sessions (chat_id, version, data, updated_at) VALUES (?, 1, ?, CURRENT_TIMESTAMP)",
+                        chatId, data);
+                return true;
+            } catch (DuplicateKeyException e) {
+                return false;
+            }
+        }
+        int updated = jdbcTemplate.update(
+                "UPDATE chat_sessions SET data = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP " +
+                        "WHERE chat_id = ? AND version = ?",
+                data, chatId, expectedVersion);
+        return updated == 1;
+    }
+
+    private VersionedSession load(Long chatId) {
+        List<VersionedSession> rows = jdbcTemplate.query(
+                "SELECT version, data FROM chat_sessions WHERE chat_id = ?",
+                (rs, i) -> new VersionedSession(UserSessionCodec.decode(rs.getBytes("data")), rs.getLong("version")),
+                chatId);
+        if (rows.isEmpty()) {
+            return new VersionedSession(new UserSession(BotState.INITIAL, null), 0);
+        }
+        return rows.get(0);
+    }
+
+    /**
+     * Данные сессии читаются, только если версия в БД отличается от закэшированной.
+     */
+    private VersionedSession revalidate(Long chatId, VersionedSession cached) {
+        List<VersionedSession> rows = jdbcTemplate.query(
+                "SELECT version, CASE WHEN version = ? THEN NULL ELSE data END AS data FROM chat_sessions WHERE chat_id = ?",
+                (rs, i) -> {
+                    long version = rs.getLong("version");
+                    return version == cached.version() ? cached
+                            : new VersionedSession(UserSessionCodec.decode(rs.getBytes("data")), version);
+                },
+                cached.version(), chatId);
+        if (rows.isEmpty()) {
+            return cached.version() == 0 ? cached : new VersionedSession(new UserSession(BotState.INITIAL, null), 0);
+        }
+        return rows.get(0);
+    }
+
+    private long currentVersion(Long chatId) {
+        List<Long> versions = jdbcTemplate.queryForList("SELECT version FROM chat_sessions WHERE chat_id = ?", Long.class, chatId);
+        return versions.isEmpty() ? 0 : versions.get(0);
+    }
+
+    private record VersionedSession(UserSession session, long version) {
+    }
+}
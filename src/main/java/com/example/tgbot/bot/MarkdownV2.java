@@ -0,0 +1,215 @@
+package com.example.tgbot.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Разметка MarkdownV2 для Bot API из типизированных фрагментов: обычный текст,
+ * цитата, ссылка, жирный текст. Экранирование по правилам Telegram: каждый
+ * зарезервированный символ (_*[]()~`>#+-=|{}.! и сам \) получает один обратный слэш,
+ * в адресе ссылки — только ) и \.
+ * <p>
+ * Шаблон из фрагментов компилируется один раз ({@link #compile}): постоянные части
+ * превращаются в готовые строки, а аргументы (баланс, промпт) экранируются при каждой
+ * отправке прямо в StringBuilder сообщения, без промежуточных строк. Builder свой на каждый
+ * вызов и сразу размечен под итоговую длину: на сообщение — один буфер и итоговая строка.
+ * Переиспользуемый (ThreadLocal) буфер не заводим: после промпта в 10000 символов он так
+ * и держал бы десятки килобайт в каждом потоке обработки апдейтов.
+ */
+final class MarkdownV2 {
+
+    private static final boolean[] RESERVED = new boolean[128];
+
+    static {
+        for (char c : "_*[]()~`>#+-=|{}.!\\".toCharArray()) {
+            RESERVED[c] = true;
+        }
+    }
+
+    private MarkdownV2() {
+    }
+
+    static String escape(CharSequence text) {
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        escape(text, out, false);
+        return out.toString();
+    }
+
+    /**
+     * @param quoted текст внутри цитаты: после каждого перевода строки снова ставится маркер цитаты
+     */
+    static void escape(CharSequence text, StringBuilder out, boolean quoted) {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < RESERVED.length && RESERVED[c]) {
+                out.append('\\');
+            }
+            out.append(c);
+            if (quoted && c == '\n') {
+                out.append('>');
+            }
+        }
+    }
+
+    private static void escapeUrl(CharSequence url, StringBuilder out) {
+        for (int i = 0, n = url.length(); i < n; i++) {
+            char c = url.charAt(i);
+            if (c == ')' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+
+    static Fragment text(String text) {
+        return new Text(text);
+    }
+
+    static Fragment arg(int slot) {
+        return new Arg(slot);
+    }
+
+    static Fragment bold(Fragment... content) {
+        return new Bold(List.of(content));
+    }
+
+    static Fragment quote(Fragment... content) {
+        return new Quote(List.of(content));
+    }
+
+    static Fragment link(String text, String url) {
+        return new Link(text, url);
+    }
+
+    static Template compile(Fragment... fragments) {
+        Compiler compiler = new Compiler();
+        for (Fragment fragment : fragments) {
+            fragment.compile(compiler, false);
+        }
+        return compiler.finish();
+    }
+
+    /**
+     * Кусок разметки. Постоянные куски экранируются при компиляции, аргументы — при отправке.
+     */
+    sealed interface Fragment permits Text, Arg, Bold, Quote, Link {
+
+        void compile(Compiler compiler, boolean quoted);
+    }
+
+    /** Обычный текст. */
+    record Text(String text) implements Fragment {
+        @Override
+        public void compile(Compiler compiler, boolean quoted) {
+            escape(text, compiler.literal, quoted);
+        }
+    }
+
+    /** Аргумент шаблона: экранируется как обычный текст. */
+    record Arg(int slot) implements Fragment {
+        @Override
+        public void compile(Compiler compiler, boolean quoted) {
+            compiler.slot(slot, quoted);
+        }
+    }
+
+    record Bold(List<Fragment> content) implements Fragment {
+        @Override
+        public void compile(Compiler compiler, boolean quoted) {
+            compiler.literal.append('*');
+            content.forEach(fragment -> fragment.compile(compiler, quoted));
+            compiler.literal.append('*');
+        }
+    }
+
+    /** Цитата: каждая её строка, включая строки внутри аргументов, начинается с >. */
+    record Quote(List<Fragment> content) implements Fragment {
+        @Override
+        public void compile(Compiler compiler, boolean quoted) {
+            compiler.literal.append('>');
+            content.forEach(fragment -> fragment.compile(compiler, true));
+        }
+    }
+
+    record Link(String text, String url) implements Fragment {
+        @Override
+        public void compile(Compiler compiler, boolean quoted) {
+            compiler.literal.append('[');
+            escape(text, compiler.literal, false);
+            compiler.literal.append("](");
+            escapeUrl(url, compiler.literal);
+            compiler.literal.append(')');
+        }
+    }
+
+    static final class Compiler {
+
+        private final StringBuilder literal = new StringBuilder();
+        private final List<String> parts = new ArrayList<>();
+        private final List<SlotRef> slots = new ArrayList<>();
+
+        private void slot(int slot, boolean quoted) {
+            parts.add(literal.toString());
+            literal.setLength(0);
+            slots.add(new SlotRef(slot, quoted));
+        }
+
+        private Template finish() {
+            parts.add(literal.toString());
+            int[] slotIndexes = new int[slots.size()];
+            boolean[] quoted = new boolean[slots.size()];
+            for (int i = 0; i < slotIndexes.length; i++) {
+                slotIndexes[i] = slots.get(i).slot();
+                quoted[i] = slots.get(i).quoted();
+            }
+            return new Template(parts.toArray(String[]::new), slotIndexes, quoted);
+        }
+
+        private record SlotRef(int slot, boolean quoted) {
+        }
+    }
+
+    /**
+     * Скомпилированный шаблон: parts[0] arg parts[1] arg ... parts[n].
+     */
+    static final class Template {
+
+        private final String[] parts;
+        private final int[] slots;
+        private final boolean[] quoted;
+        private final int literalLength;
+
+        private Template(String[] parts, int[] slots, boolean[] quoted) {
+            this.parts = parts;
+            this.slots = slots;
+            this.quoted = quoted;
+            int length = 0;
+            for (String part : parts) {
+                length += part.length();
+            }
+            this.literalLength = length;
+        }
+
+        String render(String[] args) {
+            if (slots.length == 0) {
+                return parts[0];
+            }
+            int capacity = literalLength;
+            for (int slot : slots) {
+                capacity += argument(args, slot).length() + 8;
+            }
+            StringBuilder out = new StringBuilder(capacity);
+            out.append(parts[0]);
+            for (int i = 0; i < slots.length; i++) {
+                escape(argument(args, slots[i]), out, quoted[i]);
+                out.append(parts[i + 1]);
+            }
+            return out.toString();
+        }
+
+        private static String argument(String[] args, int slot) {
+            return String.valueOf(slot < args.length ? args[slot] : null);
+        }
+    }
+}
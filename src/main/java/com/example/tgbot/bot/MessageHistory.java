@@ -0,0 +1,119 @@
+package com.example.tgbot.bot;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Кольцевой буфер последних сообщений чата фиксированного размера.
+ * Порядок задаётся монотонным номером записи, а не временем отправки,
+ * поэтому сообщения, отправленные в одну миллисекунду, не теряются.
+ */
+public class MessageHistory implements Iterable<HistoryEntry> {
+
+    private final HistoryEntry[] entries;
+    private int head;
+    private int size;
+    private long nextSeq;
+
+    public MessageHistory(int capacity) {
+        this.entries = new HistoryEntry[capacity];
+    }
+
+    public void add(MessageTemplate template, String[] args) {
+        append(new HistoryEntry(template, args, nextSeq++));
+    }
+
+    /**
+     * Восстанавливает запись из внешнего хранилища, сохраняя её номер.
+     */
+    void restore(HistoryEntry entry) {
+        append(entry);
+        nextSeq = Math.max(nextSeq, entry.seq() + 1);
+    }
+
+    /**
+     * Возвращает и удаляет запись перед последней, а если запись одна — её саму.
+     */
+    public HistoryEntry pollBeforeLast() {
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            HistoryEntry only = entries[head];
+            entries[head] = null;
+            size = 0;
+            return only;
+        }
+        int lastIndex = index(size - 1);
+        int previousIndex = index(size - 2);
+        HistoryEntry previous = entries[previousIndex];
+        entries[previousIndex] = entries[lastIndex];
+        entries[lastIndex] = null;
+        size--;
+        return previous;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            entries[index(i)] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<HistoryEntry> iterator() {
+        return new Iterator<>() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public HistoryEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entries[index(position++)];
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MessageHistory[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(entries[index(i)]);
+        }
+        return sb.append(']').toString();
+    }
+
+    private void append(HistoryEntry entry) {
+        if (size == entries.length) {
+            // Буфер заполнен — перезаписываем самую старую запись
+            entries[head] = entry;
+            head = (head + 1) % entries.length;
+        } else {
+            entries[index(size)] = entry;
+            size++;
+        }
+    }
+
+    private int index(int position) {
+        return (head + position) % entries.length;
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.tgbot.bot;
+
+import org.telegram.telegrambots.meta.api.methods.ParseMode;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.*;
+
+import static com.example.tgbot.bot.MarkdownV2.arg;
+import static com.example.tgbot.bot.MarkdownV2.bold;
+import static com.example.tgbot.bot.MarkdownV2.link;
+import static com.example.tgbot.bot.MarkdownV2.quote;
+import static com.example.tgbot.bot.MarkdownV2.text;
+
+
+/**
+ * Сборка сообщений бота по шаблонам: тексты, разметка и клавиатуры.
+ * Используется и при первой отправке, и при повторе сообщения из истории («Назад»).
+ * <p>
+ * Все тексты шаблонов собраны здесь, в {@link #LAYOUTS}. Реестр строится один раз при загрузке
+ * класса: клавиатуры — общие неизменяемые экземпляры, тексты MarkdownV2 собраны из фрагментов
+ * {@link MarkdownV2} и скомпилированы заранее. При отправке в текст подставляются только
+ * переменные части (баланс, промпт).
+ */
+final class MessageRenderer {
+
+    // Клавиатуры не меняются после создания и разделяются всеми сообщениями
+    private static final InlineKeyboardMarkup PACKAGE_KEYBOARD = keyboard(
+            List.of(createButton("1 видео (10 секунд) 69 руб", "package_1")),
+            List.of(createButton("5 видео (10 секунд) 300 руб", "package_5")),
+            List.of(createButton("50 видео (10 секунд) 2500 руб", "package_50")));
+    //List.of(createButton("Получить подарок", "package_gift"))
+
+    private static final InlineKeyboardMarkup MAIN_MENU_KEYBOARD = keyboard(
+            List.of(createButton("Сгенерировать видео по тексту", "main_generate_text")),
+            List.of(createButton("Сгенерировать видео по картинке", "main_generate_image")),
+            List.of(createButton("Пополнить баланс", "main_recharge")),
+            List.of(createButton("Поддержка", "menu_back")));
+
+    private static final InlineKeyboardMarkup SECONDARY_MENU_KEYBOARD = keyboard(
+            List.of(createButton("Сгенерировать новое видео по тексту", "main_generate_text")),
+            List.of(createButton("Сгенерировать новое видео по картинке", "main_generate_image")),
+            List.of(createButton("Пополнить баланс", "main_recharge")),
+            List.of(createButton("Поддержка", "menu_back")));
+
+    private static final InlineKeyboardMarkup FORMAT_KEYBOARD = keyboard(
+            // Two buttons in one row
+            List.of(createButton("\uD83D\uDDA5️ Горизонтальное", "format_9_16"), createButton("\uD83D\uDCF1 Вертикальное", "format_16_9")),
+            List.of(createButton("Назад", "format_back")));
+
+    private static final InlineKeyboardMarkup BACK_TO_MENU_KEYBOARD = keyboard(
+            List.of(createButton("Главное меню", "menu_back")));
+
+    private static final InlineKeyboardMarkup BACK_BUTTON = keyboard(
+            List.of(createButton("Назад", "format_back")));
+
+    private static final Map<MessageTemplate, Layout> LAYOUTS = buildLayouts();
+
+    private MessageRenderer() {
+    }
+
+    private static Map<MessageTemplate, Layout> buildLayouts() {
+        Map<MessageTemplate, Layout> layouts = new EnumMap<>(MessageTemplate.class);
+        layouts.put(MessageTemplate.START, Layout.plain(
+                "\uD83C\uDFAC Привет! Я Sora 2 — твой ИИ для создания видео. " +
+                        "Я могу сгенерировать 10-секундный ролик по твоему описанию или картинке.\n" +
+                        "\uD83D\uDCA1 Как это работает:\n" +
+                        "1️⃣ Отправь мне текст или изображение с идеей видео.\n" +
+                        "2️⃣ Я превращу твою идею в короткий красивый ролик.\n" +
+                        "\uD83D\uDCB3 Чтобы начать, нажми одну из кнопок ниже для оплаты:",
+                PACKAGE_KEYBOARD));
+        layouts.put(MessageTemplate.MAIN_MENU, new Layout(
+                args -> args.length > 0 && args[0] != null ? args[0] : "Главное меню",
+                null, false, MAIN_MENU_KEYBOARD));
+        layouts.put(MessageTemplate.AFTER_PURCHASE, Layout.markdown(MAIN_MENU_KEYBOARD,
+                text("\uD83C\uDF89 "), bold(text("Спасибо за оплату!")),
+                text("\n\nТы пополнил баланс и получил "), arg(0), text(" генераций видео.\n" +
+                        "✨ Теперь можно создавать ролики по тексту или картинке — 10 секунд, 720p.\n\n\n"),
+                quota(1)));
+        layouts.put(MessageTemplate.PAYMENT_UNAVAILABLE, Layout.markdown(MAIN_MENU_KEYBOARD,
+                text("Простите, оплата временно недоступна.\n\n"), quota(0)));
+        layouts.put(MessageTemplate.GENERATION_STARTED, Layout.markdown(SECONDARY_MENU_KEYBOARD,
+                text("⏳ Отлично! Я получил твоё описание. Генерация видео займёт ~3 минуты. " +
+                        "Как только ролик будет готов, я пришлю его сюда! \uD83C\uDFAC\n\n"),
+                quota(0)));
+        layouts.put(MessageTemplate.GIFT, Layout.markdown(MAIN_MENU_KEYBOARD,
+                text("\uD83C\uDF81 "), bold(text("Поздравляем!")),
+                text("\n\nТы получил 1 бесплатную генерацию видео!✨\nТеперь можешь создать ролик по тексту или картинке.\n\n"),
+                quota(0)));
+        // Промпт — текст пользователя: цитата, каждая его строка экранируется и начинается с >
+        layouts.put(MessageTemplate.GENERATION_DONE, Layout.markdown(SECONDARY_MENU_KEYBOARD,
+                text("✅ Видео готово!\n\uD83D\uDCBE Промпт:\n"), quote(arg(0))));
+        String formatText = "\uD83D\uDCFD️Выберите удобный формат\uD83D\uDCFD️";
+        layouts.put(MessageTemplate.FORMAT_SELECTION, Layout.plain(
+                centerText(formatText, formatText.length() + 20), FORMAT_KEYBOARD));
+        layouts.put(MessageTemplate.DESCRIPTION_PROMPT, Layout.markdown(BACK_BUTTON,
+                text("✏ Отправь мне сообщение и я сгенерирую видео!\n\n"), quota(0)));
+        layouts.put(MessageTemplate.IMAGE_UPLOAD_PROMPT, Layout.markdown(BACK_BUTTON,
+                text("✏ Отправь мне сообщение вместе с изображением и я сгенерирую видео!\n\n"), quota(0)));
+        for (MessageTemplate template : MessageTemplate.values()) {
+            if (!layouts.containsKey(template)) {
+                throw new IllegalStateException("No layout for template " + template);
+            }
+        }
+        return Collections.unmodifiableMap(layouts);
+    }
+
+    /**
+     * Цитата с остатком генераций; должна начинаться с новой строки.
+     */
+    private static MarkdownV2.Fragment quota(int balanceSlot) {
+        return quote(text("\uD83D\uDC8EУ вас осталось : "), arg(balanceSlot), text(" генераций.\n\uD83D\uDCE9 Примеры и советы: "),
+                link("https://t.me/sora2examples", "https://t.me/sora2examples"));
+    }
+
+    static SendMessage render(Long chatId, MessageTemplate template, String... args) {
+        Layout layout = LAYOUTS.get(template);
+        if (layout == null) {
+            throw new IllegalArgumentException("Unsupported template " + template);
+        }
+        SendMessage message = new SendMessage(String.valueOf(chatId), layout.body().fill(args));
+        if (layout.parseMode() != null) {
+            message.setParseMode(layout.parseMode());
+        }
+        message.setReplyMarkup(layout.keyboard());
+        if (layout.disablePreview()) {
+            message.disableWebPagePreview();
+        }
+        return message;
+    }
+
+    static InlineKeyboardMarkup packageKeyboard() {
+        return PACKAGE_KEYBOARD;
+    }
+
+    static InlineKeyboardMarkup mainMenuKeyboard() {
+        return MAIN_MENU_KEYBOARD;
+    }
+
+    static InlineKeyboardMarkup secondaryMenuKeyboard() {
+        return SECONDARY_MENU_KEYBOARD;
+    }
+
+    static InlineKeyboardMarkup formatKeyboard() {
+        return FORMAT_KEYBOARD;
+    }
+
+    static InlineKeyboardMarkup backToMenuKeyboard() {
+        return BACK_TO_MENU_KEYBOARD;
+    }
+
+    static InlineKeyboardMarkup backButton() {
+        return BACK_BUTTON;
+    }
+
+    @SafeVarargs
+    private static InlineKeyboardMarkup keyboard(List<InlineKeyboardButton>... rows) {
+        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
+        markup.setKeyboard(List.of(rows));
+        return markup;
+    }
+
+    private static InlineKeyboardButton createButton(String text, String callbackData) {
+        InlineKeyboardButton button = new InlineKeyboardButton();
+        button.setText(text);
+        button.setCallbackData(callbackData);
+        return button;
+    }
+
+    static String centerText(String text, int lineLength) {
+        String[] lines = text.split("\n");
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            int padding = (lineLength - line.length()) / 2;
+            sb.append(" ".repeat(Math.max(0, padding)));
+            sb.append(line);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Готовое сообщение шаблона без текста: текст собирает {@link Body} из аргументов.
+     */
+    private record Layout(Body body, String parseMode, boolean disablePreview, InlineKeyboardMarkup keyboard) {
+
+        static Layout plain(String text, InlineKeyboardMarkup keyboard) {
+            return new Layout(args -> text, null, false, keyboard);
+        }
+
+        static Layout markdown(InlineKeyboardMarkup keyboard, MarkdownV2.Fragment... fragments) {
+            return new Layout(MarkdownV2.compile(fragments)::render, ParseMode.MARKDOWNV2, true, keyboard);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        String fill(String[] args);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.tgbot.bot;
+
+
+/**
+ * Шаблоны сообщений, которые попадают в историю сессии.
+ * В истории хранится только шаблон и его аргументы, а {@code SendMessage}
+ * собирается заново в {@link MessageRenderer}. Идентификаторы пишутся
+ * во внешнее хранилище сессий — их нельзя менять или переиспользовать.
+ */
+public enum MessageTemplate {
+
+    START(1),
+
+    MAIN_MENU(2),
+
+    AFTER_PURCHASE(3),
+
+    PAYMENT_UNAVAILABLE(4),
+
+    GENERATION_STARTED(5),
+
+    GIFT(6),
+
+    GENERATION_DONE(7),
+
+    FORMAT_SELECTION(8),
+
+    DESCRIPTION_PROMPT(9),
+
+    IMAGE_UPLOAD_PROMPT(10);
+
+    private static final MessageTemplate[] BY_ID = new MessageTemplate[16];
+
+    static {
+        for (MessageTemplate template : values()) {
+            BY_ID[template.id] = template;
+        }
+    }
+
+    private final int id;
+
+    MessageTemplate(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static MessageTemplate byId(int id) {
+        MessageTemplate template = id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+        if (template == null) {
+            throw new IllegalArgumentException("Unknown message template id " + id);
+        }
+        return template;
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+
+/**
+ * Очередь исходящих вызовов Bot API с учётом лимитов Telegram.
+ * <ul>
+ *     <li>общий темп — не больше global-rate сообщений в секунду;</li>
+ *     <li>темп в одном чате — per-chat-rate в секунду с небольшим запасом per-chat-burst;</li>
+ *     <li>в одном чате сообщения уходят строго по порядку и по одному;</li>
+ *     <li>между чатами первым уходит сообщение более важной полосы ({@link Lane}),
+ *     при равенстве — более раннее;</li>
+ *     <li>на ответ 429 чат ставится на паузу retry_after, и сообщение повторяется.</li>
+ * </ul>
+ * Оба лимита считаются по GCRA, как в {@link com.example.tgbot.service.RateLimiterService}.
+ * Вызывающий поток не ждёт отправки и сразу получает CompletableFuture; сами вызовы
+ * неблокирующие ({@link TelegramApiClient}), поэтому отдельный пул потоков не нужен.
+ */
+@Component
+@Slf4j
+public class OutboundSender {
+
+    public enum Lane {
+        /** Готовые видео. */
+        VIDEO,
+        /** Ответы на действия пользователя: меню, подсказки, ошибки. */
+        INTERACTIVE,
+        /** Всё, что может подождать: рассылки, напоминания. */
+        BACKGROUND
+    }
+
+    private static final long IDLE_SWEEP_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final long originNanos = System.nanoTime();
+    private final long globalIntervalNanos;
+    private final long globalToleranceNanos;
+    private final long chatIntervalNanos;
+    private final long chatToleranceNanos;
+    private final int maxRetries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Long, ChatQueue> chats = new HashMap<>();
+    private final TreeSet<ChatQueue> ready = new TreeSet<>(
+            Comparator.comparingInt((ChatQueue c) -> c.items.peekFirst().lane.ordinal())
+                    .thenComparingLong(c -> c.items.peekFirst().seq)
+                    .thenComparingLong(c -> c.chatId));
+    private final PriorityQueue<ChatQueue> waiting = new PriorityQueue<>(Comparator.comparingLong(c -> c.readyAt));
+    private long seq;
+    private long globalTat;
+    private long lastIdleSweep;
+    private int pending;
+
+    private final Counter sentCounter;
+    private final Counter failedCounter;
+    private final Counter throttledCounter;
+
+    private volatile Thread scheduler;
+
+    public OutboundSender(MeterRegistry meterRegistry,
+                          @Value("${telegram.bot.outbound.global-rate:30}") int globalRate,
+                          @Value("${telegram.bot.outbound.per-chat-rate:1}") int perChatRate,
+                          @Value("${telegram.bot.outbound.per-chat-burst:3}") int perChatBurst,
+                          @Value("${telegram.bot.outbound.max-retries:3}") int maxRetries) {
+        this.globalIntervalNanos = TimeUnit.SECONDS.toNanos(1) / globalRate;
+        this.globalToleranceNanos = globalIntervalNanos * (globalRate - 1);
+        this.chatIntervalNanos = TimeUnit.SECONDS.toNanos(1) / perChatRate;
+        this.chatToleranceNanos = chatIntervalNanos * (perChatBurst - 1);
+        this.maxRetries = maxRetries;
+        this.sentCounter = meterRegistry.counter("bot.outbound.messages", "result", "sent");
+        this.failedCounter = meterRegistry.counter("bot.outbound.messages", "result", "failed");
+        this.throttledCounter = meterRegistry.counter("bot.outbound.messages", "result", "throttled");
+        meterRegistry.gauge("bot.outbound.queue.size", this, OutboundSender::pending);
+    }
+
+    @PostConstruct
+    void start() {
+        Thread thread = new Thread(this::scheduleLoop, "bot-outbound");
+        thread.setDaemon(true);
+        thread.start();
+        scheduler = thread;
+    }
+
+    @PreDestroy
+    void stop() {
+        Thread thread = scheduler;
+        scheduler = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Ставит вызов Bot API в очередь чата.
+     *
+     * @param call вызов Bot API, например {@code () -> telegramApiClient.execute(message)};
+     *             выполняется, когда подойдёт очередь
+     */
+    public <T> CompletableFuture<T> submit(long chatId, Lane lane, Supplier<Mono<T>> call) {
+        Outbound<T> item;
+        lock.lock();
+        try {
+            item = new Outbound<>(lane, seq++, call);
+            ChatQueue chat = chats.computeIfAbsent(chatId, ChatQueue::new);
+            chat.items.addLast(item);
+            pending++;
+            if (chat.state == ChatState.IDLE) {
+                schedule(chat, now());
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return item.result;
+    }
+
+    public int pending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleLoop() {
+        while (scheduler != null) {
+            ChatQueue chat;
+            Outbound<?> item;
+            lock.lock();
+            try {
+                long now = now();
+                while (!waiting.isEmpty() && waiting.peek().readyAt <= now) {
+                    ChatQueue next = waiting.poll();
+                    next.state = ChatState.READY;
+                    ready.add(next);
+                }
+                sweepIdle(now);
+                if (ready.isEmpty()) {
+                    if (waiting.isEmpty()) {
+                        changed.await(IDLE_SWEEP_NANOS, TimeUnit.NANOSECONDS);
+                    } else {
+                        changed.awaitNanos(waiting.peek().readyAt - now);
+                    }
+                    continue;
+                }
+                long globalWait = globalTat - globalToleranceNanos - now;
+                if (globalWait > 0) {
+                    changed.awaitNanos(globalWait);
+                    continue;
+                }
+                chat = ready.pollFirst();
+                item = chat.items.pollFirst();
+                pending--;
+                chat.state = ChatState.IN_FLIGHT;
+                globalTat = Math.max(globalTat, now) + globalIntervalNanos;
+                chat.tat = Math.max(chat.tat, now) + chatIntervalNanos;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            send(chat, item);
+        }
+    }
+
+    private <T> void send(ChatQueue chat, Outbound<T> item) {
+        Mono.defer(item.call).toFuture().whenComplete((value, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            Integer retryAfter = retryAfter(cause);
+            if (retryAfter != null && item.attempts < maxRetries) {
+                throttledCounter.increment();
+                log.warn("Telegram asked to retry after {}s for chat {}", retryAfter, chat.chatId);
+                item.attempts++;
+                afterSend(chat, item, TimeUnit.SECONDS.toNanos(retryAfter));
+                return;
+            }
+            afterSend(chat, null, 0);
+            if (cause != null) {
+                failedCounter.increment();
+                log.warn("Failed to send to chat {}: {}", chat.chatId, cause.getMessage());
+                item.result.completeExceptionally(cause);
+            } else {
+                sentCounter.increment();
+                item.result.complete(value);
+            }
+        });
+    }
+
+    /**
+     * Возвращает чат в расписание после ответа Telegram.
+     *
+     * @param retry сообщение, которое нужно повторить первым, или null
+     */
+    private void afterSend(ChatQueue chat, Outbound<?> retry, long pauseNanos) {
+        lock.lock();
+        try {
+            long now = now();
+            if (retry != null) {
+                chat.items.addFirst(retry);
+                pending++;
+                chat.pausedUntil = now + pauseNanos;
+            }
+            chat.state = ChatState.IDLE;
+            if (!chat.items.isEmpty()) {
+                schedule(chat, now);
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule(ChatQueue chat, long now) {
+        chat.readyAt = Math.max(chat.tat - chatToleranceNanos, chat.pausedUntil);
+        if (chat.readyAt <= now) {
+            chat.state = ChatState.READY;
+            ready.add(chat);
+        } else {
+            chat.state = ChatState.WAITING;
+            waiting.add(chat);
+        }
+    }
+
+    /**
+     * Забывает чаты без сообщений, у которых темп уже восстановился полностью.
+     */
+    private void sweepIdle(long now) {
+        if (now - lastIdleSweep < IDLE_SWEEP_NANOS) {
+            return;
+        }
+        lastIdleSweep = now;
+        Iterator<ChatQueue> it = chats.values().iterator();
+        while (it.hasNext()) {
+            ChatQueue chat = it.next();
+            if (chat.state == ChatState.IDLE && chat.items.isEmpty() && chat.tat <= now && chat.pausedUntil <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    private long now() {
+        // Отсчёт от старта: все моменты неотрицательны, нулевой TAT означает «лимит не тронут»
+        return System.nanoTime() - originNanos;
+    }
+
+    private static Integer retryAfter(Throwable error) {
+        if (error instanceof TelegramApiRequestException requestException
+                && requestException.getErrorCode() != null
+                && requestException.getErrorCode() == 429
+                && requestException.getParameters() != null) {
+            return requestException.getParameters().getRetryAfter();
+        }
+        return null;
+    }
+
+    private enum ChatState {
+        IDLE,
+        READY,
+        WAITING,
+        IN_FLIGHT
+    }
+
+    private static final class ChatQueue {
+        private final long chatId;
+        private final ArrayDeque<Outbound<?>> items = new ArrayDeque<>();
+        private ChatState state = ChatState.IDLE;
+        private long tat;
+        private long pausedUntil;
+        private long readyAt;
+
+        ChatQueue(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static final class Outbound<T> {
+        private final Lane lane;
+        private final long seq;
+        private final Supplier<Mono<T>> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private int attempts;
+
+        Outbound(Lane lane, long seq, Supplier<Mono<T>> call) {
+            this.lane = lane;
+            this.seq = seq;
+            this.call = call;
+        }
+    }
+}
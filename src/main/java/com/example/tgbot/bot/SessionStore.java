@@ -0,0 +1,24 @@
+package com.example.tgbot.bot;
+
+
+/**
+ * Хранилище сессий чатов.
+ * Сессия, которой нет в хранилище (новый чат или вытесненная запись),
+ * возвращается пустой в состоянии {@link BotState#INITIAL}.
+ */
+public interface SessionStore {
+
+    UserSession get(Long chatId);
+
+    /**
+     * Сохраняет сессию после обработки апдейта.
+     */
+    void put(Long chatId, UserSession session);
+
+    /**
+     * Хранилище в памяти этого узла: чтение и запись не обращаются к БД.
+     */
+    default boolean isLocal() {
+        return false;
+    }
+}
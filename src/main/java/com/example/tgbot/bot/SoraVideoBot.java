@@ -1,52 +1,102 @@
 package com.example.tgbot.bot;
 
+import com.example.tgbot.model.BalanceEventType;
+import com.example.tgbot.model.GenerationJob;
 import com.example.tgbot.model.User;
+import com.example.tgbot.service.GeneratedVideo;
+import com.example.tgbot.service.GenerationJobService;
 import com.example.tgbot.service.UserService;
+import com.example.tgbot.service.VideoFileIdCache;
 import com.example.tgbot.service.VideoGenerationService;
 import com.example.tgbot.service.RateLimiterService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.telegram.telegrambots.bots.TelegramWebhookBot;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
-import org.telegram.telegrambots.meta.api.methods.ParseMode;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
 import org.telegram.telegrambots.meta.api.objects.*;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
-
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 @Component
 @Slf4j
 public class SoraVideoBot extends TelegramWebhookBot {
 
+    private static final String PATH_INLINE = "inline";
+    private static final String PATH_QUEUED = "queued";
+    private static final String FLOW_TEXT = VideoGenerationService.flowOf(VideoGenerationService.TEXT_TO_VIDEO_MODEL);
+    private static final String FLOW_IMAGE = VideoGenerationService.flowOf(VideoGenerationService.IMAGE_TO_VIDEO_MODEL);
+
+    /**
+     * Навигация по меню: обработчики только меняют сессию и отправляют сообщение.
+     * Её можно выполнить в потоке вебхука, если и сессия, и пользователь уже в памяти — см. {@link #canRunInline}.
+     */
+    private static final Set<String> INLINE_CALLBACKS = Set.of(
+            "main_generate_text", "main_generate_image", "main_recharge",
+            "format_16_9", "format_9_16", "format_back", "menu_back",
+            "package_1", "package_5", "package_50");
+
+    /** Известные значения callback data: остальные в метриках сводятся к "other". */
+    private static final Set<String> KNOWN_CALLBACKS = Stream.concat(INLINE_CALLBACKS.stream(), Stream.of("package_gift"))
+            .collect(Collectors.toUnmodifiableSet());
+
     private final UserService userService;
+    private final GenerationJobService generationJobService;
     private final VideoGenerationService videoGenerationService;
     private final RateLimiterService rateLimiterService;
-    private final Executor taskExecutor;
+    private final ChatUpdateDispatcher updateDispatcher;
+    private final SessionStore sessionStore;
+    private final OutboundSender outboundSender;
+    private final TelegramApiClient telegramApiClient;
+    private final VideoDelivery videoDelivery;
+    private final VideoFileIdCache videoFileIdCache;
+    private final ImageIngestion imageIngestion;
+    private final MeterRegistry meterRegistry;
+    private final ThreadLocal<InlineReplies> inlineReplies = new ThreadLocal<>();
 
     public SoraVideoBot(UserService userService,
+                        GenerationJobService generationJobService,
                         VideoGenerationService videoGenerationService,
                         RateLimiterService rateLimiterService,
-                        @Qualifier("botExecutor") Executor taskExecutor) {
+                        ChatUpdateDispatcher updateDispatcher,
+                        SessionStore sessionStore,
+                        OutboundSender outboundSender,
+                        TelegramApiClient telegramApiClient,
+                        VideoDelivery videoDelivery,
+                        VideoFileIdCache videoFileIdCache,
+                        ImageIngestion imageIngestion,
+                        MeterRegistry meterRegistry) {
         this.userService = userService;
+        this.generationJobService = generationJobService;
         this.videoGenerationService = videoGenerationService;
         this.rateLimiterService = rateLimiterService;
-        this.taskExecutor = taskExecutor;
+        this.updateDispatcher = updateDispatcher;
+        this.sessionStore = sessionStore;
+        this.outboundSender = outboundSender;
+        this.telegramApiClient = telegramApiClient;
+        this.videoDelivery = videoDelivery;
+        this.videoFileIdCache = videoFileIdCache;
+        this.imageIngestion = imageIngestion;
+        this.meterRegistry = meterRegistry;
     }
 
 
-    private final Map<Long, UserSession> sessions = new ConcurrentHashMap<>();
-
     @Value("${telegram.bot.name}")
     private String botName;
 
@@ -77,31 +127,116 @@ public class SoraVideoBot extends TelegramWebhookBot {
     }
 
     @Override
-    public org.telegram.telegrambots.meta.api.methods.BotApiMethod<?> onWebhookUpdateReceived(Update update) {
-        log.debug("Update Received: {}", update);
-        taskExecutor.execute(() -> {
+    public BotApiMethod<?> onWebhookUpdateReceived(Update update) {
+        log.trace("Update Received: {}", update);
+        if (!submitUpdate(update, System.nanoTime(), () -> { })) {
+            log.warn("Dropping update {}: queue of chat {} is full", update.getUpdateId(), resolveChatId(update));
+        }
+        return null;
+    }
+
+    /**
+     * Ставит апдейт в очередь его чата.
+     *
+     * @param receivedAt System.nanoTime() приёма вебхука
+     * @param onComplete вызывается после обработки апдейта (в том числе с ошибкой)
+     * @return false, если очередь чата переполнена и апдейт не принят
+     */
+    public boolean submitUpdate(Update update, long receivedAt, Runnable onComplete) {
+        return updateDispatcher.dispatch(resolveChatId(update), () -> {
             try {
-                processUpdate(update);
-            } catch (Exception e) {
-                log.error("Unhandled exception while processing update", e);
+                processUpdate(update, PATH_QUEUED, receivedAt);
+            } finally {
+                onComplete.run();
             }
         });
-        return null;
     }
 
-    private void processUpdate(Update update) {
+    /**
+     * Быстрый путь для навигации по меню: можно ли обработать апдейт прямо в потоке вебхука.
+     * Поток вебхука не должен ждать БД, поэтому сессии должны храниться в памяти, а пользователь —
+     * уже лежать в кэше. Запись кэша может истечь между проверкой и обработкой — тогда
+     * пользователь будет прочитан из БД одним SELECT.
+     */
+    boolean canRunInline(Update update) {
+        return update.hasCallbackQuery()
+                && update.getCallbackQuery().getMessage() != null
+                && INLINE_CALLBACKS.contains(update.getCallbackQuery().getData())
+                && sessionStore.isLocal()
+                && userService.isCached(resolveChatId(update));
+    }
+
+    /**
+     * Обрабатывает апдейт в текущем потоке, если его чат сейчас ничем не занят.
+     * В тело ответа вебхука помещается один метод Bot API: единственное сообщение обработчика
+     * (ответ на callback тогда уходит отдельным запросом), а если сообщений нет или их несколько —
+     * ответ на callback (сообщения тогда уходят по порядку обычным путём).
+     */
+    InlineOutcome tryProcessInline(Update update, long receivedAt) {
+        if (!canRunInline(update)) {
+            return InlineOutcome.NOT_HANDLED;
+        }
+        InlineReplies captured = new InlineReplies();
+        boolean ran = updateDispatcher.tryRunInline(resolveChatId(update), () -> {
+            inlineReplies.set(captured);
+            try {
+                processUpdate(update, PATH_INLINE, receivedAt);
+            } finally {
+                inlineReplies.remove();
+            }
+        });
+        if (!ran) {
+            return InlineOutcome.NOT_HANDLED;
+        }
+        if (captured.messages.size() == 1) {
+            answerCallback(captured.answer);
+            return new InlineOutcome(true, captured.messages.get(0));
+        }
+        captured.messages.forEach(message -> send(Long.valueOf(message.getChatId()), message));
+        return new InlineOutcome(true, captured.answer);
+    }
+
+    /**
+     * Ключ очереди апдейта: апдейты одного чата обрабатываются строго по порядку.
+     */
+    long resolveChatId(Update update) {
+        if (update.hasCallbackQuery()) {
+            CallbackQuery callback = update.getCallbackQuery();
+            if (callback.getMessage() != null) {
+                return callback.getMessage().getChatId();
+            }
+            return callback.getFrom().getId();
+        }
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        }
+        return 0L;
+    }
+
+    private void processUpdate(Update update, String path, long receivedAt) {
         log.trace("Call processUpdate");
+        queueWaitTimer(path).record(System.nanoTime() - receivedAt, TimeUnit.NANOSECONDS);
+        if (!update.hasCallbackQuery() && !update.hasMessage()) {
+            return;
+        }
+        Long chatId = resolveChatId(update);
+        UserSession session = sessionStore.get(chatId);
         try {
+            // Пользователь загружается один раз на апдейт и передаётся обработчикам
+            User user = userService.findOrCreateUser(chatId);
             if (update.hasCallbackQuery()) {
                 log.trace("update has CallbackQuery");
-                handleCallback(update.getCallbackQuery());
+                Timer.Sample sample = Timer.start(meterRegistry);
+                try {
+                    handleCallback(update.getCallbackQuery(), user, session);
+                } finally {
+                    sample.stop(callbackTimer(update.getCallbackQuery().getData(), path));
+                }
                 return;
             }
 
             if (update.hasMessage()) {
                 Message message = update.getMessage();
-                Long chatId = message.getChatId();
-                UserSession session = sessions.computeIfAbsent(chatId, id -> new UserSession(BotState.INITIAL, null));
                 // Обработка стартового сообщения
                 if (message.hasText() && message.getText().equalsIgnoreCase("/start")) {
                     handleStart(chatId, session);
@@ -112,14 +247,14 @@ public class SoraVideoBot extends TelegramWebhookBot {
                 if ((message.hasDocument() && message.getDocument().getMimeType().contains("image"))
                         || message.hasPhoto()) {
                     if (session.getState() == BotState.WAITING_FOR_IMAGE_UPLOAD) {
-                        handleImageUpload(chatId, message, session);
+                        handleImageUpload(chatId, message, user, session, receivedAt);
                     } else {
                         sendMainMenu(chatId, "Фото получено, но я ожидаю другую команду. Выберите действие из меню.", session);
                     }
                 } else if (message.hasText()) { // Если нет документа или фото, но есть текст
                     switch (session.getState()) {
                         case WAITING_FOR_TEXT_DESCRIPTION:
-                            handleTextDescription(chatId, message.getText(), session);
+                            handleTextDescription(chatId, message.getText(), user, session, receivedAt);
                             break;
                         default:
                             // unknown message in current state
@@ -129,50 +264,41 @@ public class SoraVideoBot extends TelegramWebhookBot {
             }
         } catch (Exception e) {
             log.error("Error processing update", e);
+        } finally {
+            sessionStore.put(chatId, session);
         }
     }
 
 
-    private void handleStart(Long chatId, UserSession session) throws TelegramApiException {
-        // Persist or retrieve the user
-        User user = userService.findOrCreateUser(chatId);
-        sessions.put(chatId, new UserSession(BotState.WAITING_FOR_PACKAGE_SELECTION, null));
-        String text = "\uD83C\uDFAC Привет! Я Sora 2 — твой ИИ для создания видео. " +
-                "Я могу сгенерировать 10-секундный ролик по твоему описанию или картинке.\n" +
-                "\uD83D\uDCA1 Как это работает:\n" +
-                "1️⃣ Отправь мне текст или изображение с идеей видео.\n" +
-                "2️⃣ Я превращу твою идею в короткий красивый ролик.\n" +
-                "\uD83D\uDCB3 Чтобы начать, нажми одну из кнопок ниже для оплаты:";
-        SendMessage message = new SendMessage(String.valueOf(chatId), text);
-        message.setReplyMarkup(packageKeyboard());
-        session.putMessageHistory(message);
-        execute(message);
+    private void handleStart(Long chatId, UserSession session) {
+        session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION);
+        session.setSelectedFormat(null);
+        session.getMessageHistory().clear();
+        sendTemplate(chatId, session, MessageTemplate.START);
     }
 
-    private void handleCallback(CallbackQuery callback) throws TelegramApiException {
+    private void handleCallback(CallbackQuery callback, User user, UserSession session) {
         String data = callback.getData();
         Long chatId = callback.getMessage().getChatId();
-        UserSession session = sessions.computeIfAbsent(chatId, id -> new UserSession(BotState.INITIAL, null));
-        User user = userService.findOrCreateUser(chatId);
         log.debug("Received callback {} from {}", data, chatId);
         switch (data) {
             case "package_1":
-                //userService.addBalance(user, 1);
-                //sendAfterPurchase(chatId, 1, session);
-                sendAfterPurchaseTemp(chatId, session);
+                //userService.addBalance(user, 1, BalanceEventType.PURCHASE);
+                //sendAfterPurchase(chatId, 1, user, session);
+                sendAfterPurchaseTemp(chatId, user, session);
                 break;
             case "package_5":
-//                userService.addBalance(user, 5);
-//                sendAfterPurchase(chatId, 5, session);
-                sendAfterPurchaseTemp(chatId, session);
+//                userService.addBalance(user, 5, BalanceEventType.PURCHASE);
+//                sendAfterPurchase(chatId, 5, user, session);
+                sendAfterPurchaseTemp(chatId, user, session);
                 break;
             case "package_50":
-//                userService.addBalance(user, 50);
-//                sendAfterPurchase(chatId, 50, session);
-                sendAfterPurchaseTemp(chatId, session);
+//                userService.addBalance(user, 50, BalanceEventType.PURCHASE);
+//                sendAfterPurchase(chatId, 50, user, session);
+                sendAfterPurchaseTemp(chatId, user, session);
                 break;
             case "package_gift":
-                userService.addBalance(user, 1);
+                userService.addBalance(user, 1, BalanceEventType.GIFT);
                 sendAfterGift(chatId, user.getBalance(), session);
                 break;
             case "main_generate_text":
@@ -197,8 +323,8 @@ public class SoraVideoBot extends TelegramWebhookBot {
             case "main_recharge":
                 session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION);
                 SendMessage pkgMsg = new SendMessage(String.valueOf(chatId), "Выберите пакет для пополнения баланса:");
-                pkgMsg.setReplyMarkup(packageKeyboard());
-                execute(pkgMsg);
+                pkgMsg.setReplyMarkup(MessageRenderer.packageKeyboard());
+                send(chatId, pkgMsg);
                 break;
             case "format_16_9":
                 session.setSelectedFormat("16:9");
@@ -225,144 +351,90 @@ public class SoraVideoBot extends TelegramWebhookBot {
 
         AnswerCallbackQuery answer = new AnswerCallbackQuery();
         answer.setCallbackQueryId(callback.getId());
-        execute(answer);
-    }
-
-    private void sendAfterPurchase(Long chatId, int purchasedAmount, UserSession session) throws TelegramApiException {
-        User user = userService.findOrCreateUser(chatId);
-        sessions.get(chatId).setState(BotState.INITIAL);
-        String text = String.format("""
-                \uD83C\uDF89 Спасибо за оплату!
-
-                Ты пополнил баланс и получил %d генераций видео.
-                ✨ Теперь можно создавать ролики по тексту или картинке — 10 секунд, 720p.
-                """, purchasedAmount);
-        text = text + getQuotaMessageEntityElement(user.getBalance());
-//        String text = String.format("Поздравляем, у вас доступно %d видео\n\n" +
-//                "Тут ты можешь посмотреть примеры и шаблоны : ССЫЛКА\n" +
-//                "Инструкция как пользоваться ботом: ССЫЛКА", user.getBalance());
-        SendMessage msg = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        msg.setParseMode(ParseMode.MARKDOWNV2);
-        msg.setReplyMarkup(mainMenuKeyboard());
-        msg.disableWebPagePreview();
-        session.putMessageHistory(msg);
-        execute(msg);
+        InlineReplies inline = inlineReplies.get();
+        if (inline != null) {
+            // Как ответить, решает tryProcessInline, когда станет известно число сообщений
+            inline.answer = answer;
+            return;
+        }
+        answerCallback(answer);
     }
 
-    // TODO Это убрать как только оплату прикрутим
-    private void sendAfterPurchaseTemp(Long chatId, UserSession session) throws TelegramApiException {
-        User user = userService.findOrCreateUser(chatId);
-        sessions.get(chatId).setState(BotState.INITIAL);
-        String text = "Простите, оплата временно недоступна.";
-        text = text + getQuotaMessageEntityElement(user.getBalance());
-        SendMessage msg = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        msg.setReplyMarkup(mainMenuKeyboard());
-        session.putMessageHistory(msg);
-        execute(msg);
-    }
-
-    private void sendAfterVideoGeneration(Long chatId, UserSession session) throws TelegramApiException {
-        User user = userService.findOrCreateUser(chatId);
-        String text = "⏳ Отлично! Я получил твоё описание. Генерация видео займёт ~3 минуты. Как только ролик будет готов, я пришлю его сюда! \uD83C\uDFAC"
-                + getQuotaMessageEntityElement(user.getBalance());
-        SendMessage msg = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        msg.setParseMode(ParseMode.MARKDOWNV2);
-        msg.setReplyMarkup(secondaryMenuKeyboard());
-        msg.disableWebPagePreview();
-        session.putMessageHistory(msg);
-        execute(msg);
-    }
-
-    private void sendAfterGift(Long chatId, int balance, UserSession session) throws TelegramApiException {
-        User user = userService.findOrCreateUser(chatId);
-        sessions.get(chatId).setState(BotState.INITIAL);
-        String text = "\uD83C\uDF81 Поздравляем!\n\nТы получил 1 бесплатную генерацию видео!✨\nТеперь можешь создать ролик по тексту или картинке."
-                + getQuotaMessageEntityElement(balance);
-//        String text = String.format("Поздравляем, у вас доступно %d видео\n\n" +
-//                "Тут ты можешь посмотреть примеры и шаблоны : ССЫЛКА\n" +
-//                "Инструкция как пользоваться ботом: ССЫЛКА", user.getBalance());
-        SendMessage msg = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        msg.setParseMode(ParseMode.MARKDOWNV2);
-        msg.setReplyMarkup(mainMenuKeyboard());
-        msg.disableWebPagePreview();
-        session.putMessageHistory(msg);
-        execute(msg);
-    }
-
-
-    private void sendMainMenu(Long chatId, String text, UserSession session) throws TelegramApiException {
-        User user = userService.findOrCreateUser(chatId);
-        if (text == null) {
-            text = "Главное меню";
+    /**
+     * Ответ на callback не считается сообщением в чат и идёт мимо очереди исходящих.
+     */
+    private void answerCallback(AnswerCallbackQuery answer) {
+        if (answer == null) {
+            return;
         }
-        SendMessage message = new SendMessage(String.valueOf(chatId), text);
-        message.setReplyMarkup(mainMenuKeyboard());
-        session.putMessageHistory(message);
-        execute(message);
-    }
-
-    private void sendAfterGeneration(Long chatId, String prompt, UserSession session) throws TelegramApiException {
-        String text = "✅ Видео готово!\n\uD83D\uDCBE Промпт:\n > " + prompt;
-        SendMessage message = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        message.setParseMode(ParseMode.MARKDOWNV2);
-        message.setReplyMarkup(secondaryMenuKeyboard());
-        session.putMessageHistory(message);
-        execute(message);
-    }
-
-    private void sendFormatSelection(Long chatId, int balance, UserSession session) throws TelegramApiException {
-        String text = "\uD83D\uDCFD️Выберите удобный формат\uD83D\uDCFD️";
-        SendMessage message = new SendMessage(String.valueOf(chatId), centerText(text, text.length()+20));
-        message.setReplyMarkup(formatKeyboard());
-        session.putMessageHistory(message);
-        execute(message);
-    }
-
-    private void sendDescriptionPrompt(Long chatId, int balance, UserSession session) throws TelegramApiException {
-        String text = "✏ Отправь мне сообщение и я сгенерирую видео!"
-                + getQuotaMessageEntityElement(balance);
-//        String text = String.format(
-//                "Модель для генерации Sora 2\nУ вас доступно %d генераций\nВведите описание своего видео.\n\n" +
-//                "Тут ты можешь посмотреть примеры и шаблоны : ССЫЛКА\n" +
-//                "Гайд по генерации видео", balance);
-        SendMessage message = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        message.setParseMode(ParseMode.MARKDOWNV2);
-        message.setReplyMarkup(backButton());
-        message.disableWebPagePreview();
-        session.putMessageHistory(message);
-        execute(message);
-    }
-
-    private void sendImageUploadPrompt(Long chatId, int balance, UserSession session) throws TelegramApiException {
-        String text = "✏ Отправь мне сообщение вместе с изображением и я сгенерирую видео!"
-                + getQuotaMessageEntityElement(balance);
-//        String text = String.format(
-//                "Модель для генерации: Sora 2\nУ вас доступно %d генераций\n" +
-//                "Отправьте изображение для генерации видео (JPEG, PNG, WEBP).\n\n" +
-//                "Тут ты можешь посмотреть примеры и шаблоны : ССЫЛКА", balance);
-        SendMessage message = new SendMessage(String.valueOf(chatId), makeCharacterEscapingForMarkdown(text));
-        message.setParseMode(ParseMode.MARKDOWNV2);
-        message.setReplyMarkup(backButton());
-        message.disableWebPagePreview();
-        session.putMessageHistory(message);
-        execute(message);
-    }
-
-
-    private void handleTextDescription(Long chatId, String prompt, UserSession session) throws TelegramApiException {
+        telegramApiClient.execute(answer).subscribe(null,
+                e -> log.warn("Failed to answer callback {}: {}", answer.getCallbackQueryId(), e.getMessage()));
+    }
+
+    private void sendAfterPurchase(Long chatId, int purchasedAmount, User user, UserSession session) {
+        session.setState(BotState.INITIAL);
+        sendTemplate(chatId, session, MessageTemplate.AFTER_PURCHASE,
+                String.valueOf(purchasedAmount), String.valueOf(user.getBalance()));
+    }
+
+    // TODO Это убрать как только оплату прикрутим
+    private void sendAfterPurchaseTemp(Long chatId, User user, UserSession session) {
+        session.setState(BotState.INITIAL);
+        sendTemplate(chatId, session, MessageTemplate.PAYMENT_UNAVAILABLE, String.valueOf(user.getBalance()));
+    }
+
+    private void sendAfterVideoGeneration(Long chatId, User user, UserSession session) {
+        sendTemplate(chatId, session, MessageTemplate.GENERATION_STARTED, String.valueOf(user.getBalance()));
+    }
+
+    private void sendAfterGift(Long chatId, int balance, UserSession session) {
+        session.setState(BotState.INITIAL);
+        sendTemplate(chatId, session, MessageTemplate.GIFT, String.valueOf(balance));
+    }
+
+
+    private void sendMainMenu(Long chatId, String text, UserSession session) {
+        sendTemplate(chatId, session, MessageTemplate.MAIN_MENU, text);
+    }
+
+    private void sendAfterGeneration(Long chatId, String prompt, UserSession session) {
+        sendTemplate(chatId, session, MessageTemplate.GENERATION_DONE, prompt);
+    }
+
+    private void sendFormatSelection(Long chatId, int balance, UserSession session) {
+        sendTemplate(chatId, session, MessageTemplate.FORMAT_SELECTION);
+    }
+
+    private void sendDescriptionPrompt(Long chatId, int balance, UserSession session) {
+        sendTemplate(chatId, session, MessageTemplate.DESCRIPTION_PROMPT, String.valueOf(balance));
+    }
+
+    private void sendImageUploadPrompt(Long chatId, int balance, UserSession session) {
+        sendTemplate(chatId, session, MessageTemplate.IMAGE_UPLOAD_PROMPT, String.valueOf(balance));
+    }
+
+
+    private void handleTextDescription(Long chatId, String prompt, User user, UserSession session, long receivedAt) {
         // Хардкод на длину промпта
         if (prompt.length() > 9999) {
             SendMessage promptTooLong = new SendMessage(String.valueOf(chatId),
                     "\uD83D\uDCDD Ваш запрос слишком длинный.\n" +
                             "Попробуйте сократить текст до 10000 символов.");
-            execute(promptTooLong);
+            send(chatId, promptTooLong);
             return;
         }
-        User user = userService.findOrCreateUser(chatId);
         if (!rateLimiterService.tryConsume(chatId)) {
             SendMessage rateLimitMsg = new SendMessage(String.valueOf(chatId),
                     "Превышен лимит запросов. Пожалуйста, подождите и попробуйте позже.");
-            execute(rateLimitMsg);
+            send(chatId, rateLimitMsg);
+            return;
+        }
+        String format = session.getSelectedFormat();
+        // Повтор запроса в этом чате отправляется по file_id до списания: Kie.ai не работал, генерация не тратится
+        Optional<String> cachedFileId = videoFileIdCache.find(chatId, VideoGenerationService.TEXT_TO_VIDEO_MODEL, format, prompt);
+        if (cachedFileId.isPresent()) {
+            session.setState(BotState.INITIAL);
+            deliverRepeat(chatId, format, prompt, cachedFileId.get(), receivedAt);
             return;
         }
         if (user.getBalance() <= 0) {
@@ -370,52 +442,48 @@ public class SoraVideoBot extends TelegramWebhookBot {
                     "\uD83D\uDC8EПожалуйста пополните баланс\uD83D\uDC8E", session);
             return;
         }
+        GenerationJob reservation;
         try {
-            userService.consumeOneGeneration(user);
+            reservation = generationJobService.reserve(user, chatId, VideoGenerationService.TEXT_TO_VIDEO_MODEL, format, prompt);
         } catch (IllegalStateException e) {
             sendMainMenu(chatId, "У вас нет доступных генераций. Пополните баланс.", session);
             return;
         }
 
         // Посылаем ответ, если все нормально
-        sendAfterVideoGeneration(chatId, session);
+        sendAfterVideoGeneration(chatId, user, session);
 
-        String format = session.getSelectedFormat();
         session.setState(BotState.INITIAL);
-
-        videoGenerationService.generateVideoFromText(format, prompt)
-                .subscribe(
-                        url -> {
-                            SendVideo msg = new SendVideo(String.valueOf(chatId), new InputFile(url));
-                            //msg.setCaption("Ваше сгенерированное видео");
-                            try {
-                                execute(msg);
-                                msg.setSupportsStreaming(true);
-                                sendAfterGeneration(chatId, prompt, session);
-                            } catch (TelegramApiException e) {
-                                log.error("Error sending video", e);
-                                SendMessage errorMsg = new SendMessage(String.valueOf(chatId), "Не удалось отправить видео: " + e.getMessage());
-                                try {
-                                    execute(errorMsg);
-                                } catch (TelegramApiException ex) {
-                                    log.error("Nested error sending error message", ex);
-                                }
-                            }
-                        },
-                        error -> {
-                            log.error("Video generation failed", error);
-                            SendMessage errorMsg = new SendMessage(String.valueOf(chatId), processFailedRequest(error.getMessage()));
-                            try {
-                                execute(errorMsg);
-                                userService.addBalance(user, 1);
-                            } catch (TelegramApiException e) {
-                                log.error("Error sending error message", e);
-                            }
-                        }
-                );
-    }
-
-    private void handleImageUpload(Long chatId, Message message, UserSession session) throws TelegramApiException {
+        deliverGenerationResult(chatId, prompt, FLOW_TEXT, receivedAt, reservation.getCorrelationId(),
+                videoGenerationService.generateVideoFromText(reservation, position -> notifyQueuePosition(chatId, position)));
+    }
+
+    /**
+     * Такой запрос уже выполнялся в этом чате: отправляем готовое видео по file_id бесплатно.
+     * Если Telegram отверг сам file_id, он забывается, а чат снова ждёт описание — следующая
+     * отправка запустит обычную платную генерацию. Прочие ошибки (бот заблокирован, чат не найден)
+     * повтором генерации не исправить.
+     */
+    private void deliverRepeat(Long chatId, String format, String prompt, String fileId, long receivedAt) {
+        videoDelivery.deliverCached(chatId, FLOW_TEXT, fileId)
+                .doOnNext(sent -> recordTimeToVideo(FLOW_TEXT, receivedAt, "cached"))
+                .flatMap(sent -> finishDelivery(chatId, prompt))
+                .onErrorResume(VideoDelivery::isFileIdRejected, e -> {
+                    log.warn("Cached video {} was rejected by Telegram: {}", fileId, e.getMessage());
+                    return Mono.fromRunnable(() -> videoFileIdCache.forget(chatId, VideoGenerationService.TEXT_TO_VIDEO_MODEL, format, prompt, fileId))
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .then(onChat(chatId, () -> {
+                                UserSession session = sessionStore.get(chatId);
+                                session.setState(BotState.WAITING_FOR_TEXT_DESCRIPTION);
+                                send(chatId, new SendMessage(String.valueOf(chatId),
+                                        "Сохранённое видео по этому запросу больше недоступно. Отправьте описание ещё раз — создадим новое."));
+                                sessionStore.put(chatId, session);
+                            }));
+                })
+                .subscribe(null, e -> log.error("Failed to deliver cached video to chat {}", chatId, e));
+    }
+
+    private void handleImageUpload(Long chatId, Message message, User user, UserSession session, long receivedAt) {
         log.trace("Call handleImageUpload");
         // Здесь хардкод просто анимирования картинки, без промпта sora не знает, что делать с картинкой
         String prompt = message.getCaption() == null ? "Анимируй" : message.getCaption();
@@ -424,15 +492,14 @@ public class SoraVideoBot extends TelegramWebhookBot {
             SendMessage promptTooLong = new SendMessage(String.valueOf(chatId),
                     "\uD83D\uDCDD Ваш запрос слишком длинный.\n" +
                             "Попробуйте сократить текст до 10000 символов.");
-            execute(promptTooLong);
+            send(chatId, promptTooLong);
             return;
         }
-        User user = userService.findOrCreateUser(chatId);
         // Apply per-user rate limiting
         if (!rateLimiterService.tryConsume(chatId)) {
             SendMessage rateLimitMsg = new SendMessage(String.valueOf(chatId),
                     "Превышен лимит запросов. Пожалуйста, подождите и попробуйте позже.");
-            execute(rateLimitMsg);
+            send(chatId, rateLimitMsg);
             return;
         }
         if (user.getBalance() <= 0) {
@@ -441,71 +508,137 @@ public class SoraVideoBot extends TelegramWebhookBot {
             return;
         }
         String fileId = null;
+        String fileUniqueId = null;
         if (message.hasPhoto()) {
-            fileId = message.getPhoto().stream()
+            PhotoSize photo = message.getPhoto().stream()
                     .max((a, b) -> Integer.compare(a.getFileSize(), b.getFileSize()))
-                    .map(PhotoSize::getFileId)
                     .orElse(null);
+            if (photo != null) {
+                fileId = photo.getFileId();
+                fileUniqueId = photo.getFileUniqueId();
+            }
         } else if (message.hasDocument()) {
             fileId = message.getDocument().getFileId();
+            fileUniqueId = message.getDocument().getFileUniqueId();
         }
         if (fileId == null) {
             SendMessage errMsg = new SendMessage(String.valueOf(chatId), "Не удалось получить файл изображения.");
-            execute(errMsg);
+            send(chatId, errMsg);
             return;
         }
-        // consume one generation
+        GenerationJob reservation;
         try {
-            userService.consumeOneGeneration(user);
+            reservation = generationJobService.reserve(user, chatId, VideoGenerationService.IMAGE_TO_VIDEO_MODEL, "16:9", prompt);
         } catch (IllegalStateException e) {
             sendMainMenu(chatId, "У вас нет доступных генераций. Пополните баланс.", session);
             return;
         }
         // Посылаем ответ, если все нормально
-        sendAfterVideoGeneration(chatId, session);
+        sendAfterVideoGeneration(chatId, user, session);
 
-        try {
-            org.telegram.telegrambots.meta.api.methods.GetFile getFileRequest = new org.telegram.telegrambots.meta.api.methods.GetFile();
-            getFileRequest.setFileId(fileId);
-            org.telegram.telegrambots.meta.api.objects.File file = execute(getFileRequest);
-            String filePath = file.getFilePath();
-            String imageUrl = "https://api.telegram.org/file/bot" + getBotToken() + "/" + filePath;
+        session.setState(BotState.INITIAL);
+        // Картинка сохраняется у нас, Kie.ai получает подписанную ссылку без токена бота
+        String uniqueId = fileUniqueId != null ? fileUniqueId : fileId;
+        imageIngestion.ingest(fileId, uniqueId)
+                .doOnNext(imageUrl -> deliverGenerationResult(chatId, prompt, FLOW_IMAGE, receivedAt, reservation.getCorrelationId(),
+                        videoGenerationService.generateVideoFromImage(reservation, imageUrl,
+                                position -> notifyQueuePosition(chatId, position))))
+                .then()
+                .onErrorResume(e -> {
+                    log.error("Error ingesting image {} for chat {}", uniqueId, chatId, e);
+                    recordTimeToVideo(FLOW_IMAGE, receivedAt, "ingestion_failed");
+                    // Причина уже в логе, пользователю — текст без внутренних подробностей
+                    return refundGeneration(chatId, "Не удалось загрузить изображение. Попробуйте отправить его ещё раз.",
+                            reservation.getCorrelationId(), "Image ingestion failed: " + e.getMessage());
+                })
+                .subscribe(null, e -> log.error("Failed to refund generation for chat {}", chatId, e));
+    }
+
+    /**
+     * Доставляет результат задачи, забранной из generation_jobs после истечения аренды.
+     * Задача в PENDING до Kie.ai не дошла — за неё возвращается генерация.
+     */
+    public void resumeGeneration(GenerationJob job) {
+        deliverGenerationResult(job.getChatId(), job.getPrompt(), VideoGenerationService.flowOf(job.getModel()), null,
+                job.getCorrelationId(), videoGenerationService.resumeJob(job));
+    }
+
+    /**
+     * Доставляет результат генерации без блокирующих вызовов: отправка видео идёт через
+     * {@link TelegramApiClient}, а работа с БД (сессия, возврат генерации) — на boundedElastic.
+     *
+     * @param receivedAt    System.nanoTime() приёма апдейта с запросом; null для задач, поднятых после рестарта
+     * @param correlationId задача в generation_jobs, которая при неудаче завершается с возвратом генерации
+     */
+    private void deliverGenerationResult(Long chatId, String prompt, String flow, Long receivedAt, String correlationId,
+                                         Mono<GeneratedVideo> result) {
+        result
+                .onErrorResume(error -> {
+                    log.error("Video generation failed", error);
+                    recordTimeToVideo(flow, receivedAt, "generation_failed");
+                    return refundGeneration(chatId, processFailedRequest(error.getMessage()), correlationId, error.getMessage())
+                            .then(Mono.<GeneratedVideo>empty());
+                })
+                .flatMap(video -> deliverVideo(chatId, prompt, flow, receivedAt, correlationId, video))
+                .subscribe(null, e -> log.error("Failed to deliver generation result to chat {}", chatId, e));
+    }
+
+    private Mono<Void> deliverVideo(Long chatId, String prompt, String flow, Long receivedAt, String correlationId,
+                                    GeneratedVideo video) {
+        return videoDelivery.deliver(chatId, video)
+                .doOnNext(sent -> recordTimeToVideo(flow, receivedAt, "delivered"))
+                .onErrorResume(e -> {
+                    log.error("Error sending video", e);
+                    recordTimeToVideo(flow, receivedAt, "delivery_failed");
+                    return refundGeneration(chatId, "Не удалось отправить видео: " + e.getMessage(), correlationId,
+                            "Delivery failed: " + e.getMessage())
+                            .then(Mono.<Message>empty());
+                })
+                .flatMap(sent -> finishDelivery(chatId, prompt));
+    }
+
+    private Mono<Void> finishDelivery(Long chatId, String prompt) {
+        return onChat(chatId, () -> {
+            UserSession session = sessionStore.get(chatId);
+            sendAfterGeneration(chatId, prompt, session);
+            sessionStore.put(chatId, session);
+        });
+    }
 
-            session.setState(BotState.INITIAL);
-            videoGenerationService.generateVideoFromImage("16:9", prompt, imageUrl)
-                    .subscribe(bytes -> {
-                        SendVideo msg = new SendVideo(String.valueOf(chatId), new InputFile(bytes));
-                        //msg.setCaption("Ваше сгенерированное видео");
-                        try {
-                            execute(msg);
-                            msg.setSupportsStreaming(true);
-                            sendAfterGeneration(chatId, prompt, session);
-                        } catch (TelegramApiException e) {
-                            log.error("Error sending video", e);
-                            SendMessage errorMsg = new SendMessage(String.valueOf(chatId), "Не удалось отправить видео: " + e.getMessage());
-                            try {
-                                execute(errorMsg);
-                                userService.addBalance(user, 1);
-                            } catch (TelegramApiException ex) {
-                                log.error("Nested error sending error message", ex);
-                            }
-                        }
-                    }, error -> {
-                        log.error("Video generation from image failed", error);
-                        SendMessage errorMsg = new SendMessage(String.valueOf(chatId), processFailedRequest(error.getMessage()));
-                        try {
-                            execute(errorMsg);
-                            userService.addBalance(user, 1);
-                        } catch (TelegramApiException e) {
-                            log.error("Nested error sending error message", e);
-                        }
-                    });
-        } catch (TelegramApiException e) {
-            log.error("Error fetching file path", e);
-            SendMessage errMsg = new SendMessage(String.valueOf(chatId), "Не удалось загрузить изображение: " + e.getMessage());
-            execute(errMsg);
-            userService.addBalance(user, 1);
-        }
+    /**
+     * Завершает задачу с возвратом генерации и сообщает об этом пользователю. Если задачу уже
+     * завершили (например, реплика, забравшая её после истечения аренды), ни возврата, ни сообщения нет.
+     */
+    private Mono<Void> refundGeneration(Long chatId, String notice, String correlationId, String failMessage) {
+        return Mono.fromCallable(() -> generationJobService.markFailed(correlationId, failMessage))
+                .subscribeOn(Schedulers.boundedElastic())
+                .filter(Boolean::booleanValue)
+                .flatMap(refunded -> onChat(chatId, () -> send(chatId, new SendMessage(String.valueOf(chatId), notice))));
+    }
+
+    /**
+     * Выполняет работу с чатом в его ящике, по очереди с апдейтами этого чата:
+     * сессия и история сообщений меняются только там.
+     */
+    private Mono<Void> onChat(Long chatId, Runnable task) {
+        return Mono.create(sink -> updateDispatcher.dispatchInternal(chatId, () -> {
+            try {
+                task.run();
+                sink.success();
+            } catch (RuntimeException e) {
+                sink.error(e);
+            }
+        }));
+    }
+
+    /**
+     * Сообщает пользователю, что генерация ждёт свободного места в общей очереди.
+     */
+    private void notifyQueuePosition(Long chatId, int position) {
+        SendMessage msg = new SendMessage(String.valueOf(chatId),
+                "\u23F3 Сейчас много запросов на генерацию. Ваше место в очереди: " + position + ".\n" +
+                        "Видео начнёт создаваться автоматически, ничего нажимать не нужно.");
+        send(chatId, msg);
     }
 
     private String processFailedRequest(String reason) {
@@ -523,108 +656,83 @@ public class SoraVideoBot extends TelegramWebhookBot {
         return errorMessage;
     }
 
-    private InlineKeyboardMarkup packageKeyboard() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(createButton("1 видео (10 секунд) 69 руб", "package_1")));
-        rows.add(List.of(createButton("5 видео (10 секунд) 300 руб", "package_5")));
-        rows.add(List.of(createButton("50 видео (10 секунд) 2500 руб", "package_50")));
-        //rows.add(List.of(createButton("Получить подарок", "package_gift")));
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        markup.setKeyboard(rows);
-        return markup;
-    }
-
-
-    private InlineKeyboardMarkup mainMenuKeyboard() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(createButton("Сгенерировать видео по тексту", "main_generate_text")));
-        rows.add(List.of(createButton("Сгенерировать видео по картинке", "main_generate_image")));
-        rows.add(List.of(createButton("Пополнить баланс", "main_recharge")));
-        rows.add(List.of(createButton("Поддержка", "menu_back")));
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        markup.setKeyboard(rows);
-        return markup;
-    }
-
-    private InlineKeyboardMarkup secondaryMenuKeyboard() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(createButton("Сгенерировать новое видео по тексту", "main_generate_text")));
-        rows.add(List.of(createButton("Сгенерировать новое видео по картинке", "main_generate_image")));
-        rows.add(List.of(createButton("Пополнить баланс", "main_recharge")));
-        rows.add(List.of(createButton("Поддержка", "menu_back")));
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        markup.setKeyboard(rows);
-        return markup;
-    }
-
-    private InlineKeyboardMarkup formatKeyboard() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        // Two buttons in one row
-        rows.add(List.of(createButton("\uD83D\uDDA5️ Горизонтальное", "format_9_16"), createButton("\uD83D\uDCF1 Вертикальное", "format_16_9")));
-        rows.add(List.of(createButton("Назад", "format_back")));
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        markup.setKeyboard(rows);
-        return markup;
-    }
-
-
-    private InlineKeyboardMarkup backToMenuKeyboard() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(createButton("Главное меню", "menu_back")));
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        markup.setKeyboard(rows);
-        return markup;
-    }
-
-    private InlineKeyboardButton createButton(String text, String callbackData) {
-        InlineKeyboardButton button = new InlineKeyboardButton();
-        button.setText(text);
-        button.setCallbackData(callbackData);
-        return button;
-    }
-
-    private String centerText(String text, int lineLength) {
-        String[] lines = text.split("\n");
-        StringBuilder sb = new StringBuilder();
-        for (String line : lines) {
-            int padding = (lineLength - line.length()) / 2;
-            sb.append(" ".repeat(Math.max(0, padding)));
-            sb.append(line);
-            sb.append("\n");
+    private void sendLastMessage(Long chatId, UserSession session) {
+        HistoryEntry entry = session.getLastMessageBeforeCall();
+        SendMessage msg;
+        if (entry == null) {
+            msg = new SendMessage(String.valueOf(chatId), "Простите, не могу найти историю сообщений...");
+        } else {
+            msg = MessageRenderer.render(chatId, entry.template(), entry.argsArray());
         }
-        return sb.toString();
+        send(chatId, msg);
     }
 
-    private InlineKeyboardMarkup backButton() {
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(createButton("Назад", "format_back")));
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        markup.setKeyboard(rows);
-        return markup;
+    /**
+     * Отправляет сообщение по шаблону и запоминает его в истории сессии.
+     */
+    private void sendTemplate(Long chatId, UserSession session, MessageTemplate template, String... args) {
+        session.putMessageHistory(template, args);
+        send(chatId, MessageRenderer.render(chatId, template, args));
     }
 
-    private void sendLastMessage(Long chatId, UserSession session) throws TelegramApiException {
-        SendMessage msg = session.getLastMessageBeforeCall();
-        if (msg == null) {
-            msg = new SendMessage(String.valueOf(chatId), "Простите, не могу найти историю сообщений...");
+    /**
+     * Ставит сообщение в очередь исходящих; поток обработчика не ждёт отправки.
+     */
+    private CompletableFuture<Message> send(Long chatId, SendMessage message) {
+        InlineReplies inline = inlineReplies.get();
+        if (inline != null) {
+            inline.messages.add(message);
+            return CompletableFuture.completedFuture(null);
         }
-        execute(msg);
+        return outboundSender.submit(chatId, OutboundSender.Lane.INTERACTIVE, () -> telegramApiClient.execute(message));
     }
 
-    private String getQuotaMessageEntityElement(int balance) {
-        return "\n\n > \uD83D\uDC8EУ вас осталось : %d генераций. \n > \uD83D\uDCE9 Примеры и советы: https://t.me/sora2examples".formatted(balance);
+    /**
+     * Время от приёма вебхука до начала обработки: очередь приёма и ящик чата.
+     */
+    private Timer queueWaitTimer(String path) {
+        return Timer.builder("bot.update.queue.wait")
+                .tag("path", path)
+                .register(meterRegistry);
     }
 
-    private String makeCharacterEscapingForMarkdown(String str) {
-        Set<Character> charsToEscape = new HashSet<>(Arrays.asList('_', '*', '[', ']', '(', ')', '~', '`', '>' , '#', '+', '-', '=', '|', '{', '}', '.', '!'));
-        StringBuilder sb = new StringBuilder();
-        for (char c : str.toCharArray()) {
-            if (charsToEscape.contains(c)) {
-                sb.append("\\\\");
-            }
-            sb.append(c);
+    /**
+     * Время, которое пользователь ждёт видео: от приёма апдейта с запросом до ответа Telegram на отправку.
+     */
+    private void recordTimeToVideo(String flow, Long receivedAt, String outcome) {
+        if (receivedAt == null) {
+            // Момент запроса остался в прошлом процессе
+            return;
         }
-        log.trace("Сообщение после установки экранирования: {}", sb);
-        return sb.toString();
-    }
-}
\ No newline at end of file
+        Timer.builder("bot.generation.time.to.video")
+                .tag("flow", flow)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(System.nanoTime() - receivedAt, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer callbackTimer(String data, String path) {
+        return Timer.builder("bot.callback.latency")
+                .tag("callback", KNOWN_CALLBACKS.contains(data) ? data : "other")
+                .tag("path", path)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Результат попытки быстрой обработки.
+     *
+     * @param handled false — апдейт нужно обработать обычным путём через очередь
+     * @param reply   метод для ответа в теле вебхука или null
+     */
+    record InlineOutcome(boolean handled, BotApiMethod<?> reply) {
+        static final InlineOutcome NOT_HANDLED = new InlineOutcome(false, null);
+    }
+
+    /**
+     * Методы Bot API, перехваченные при обработке в потоке вебхука.
+     */
+    private static final class InlineReplies {
+        private final List<SendMessage> messages = new ArrayList<>(1);
+        private AnswerCallbackQuery answer;
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.tgbot.bot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.Serializable;
+import java.time.Duration;
+
+
+/**
+ * Неблокирующий клиент Bot API на общем WebClient с пулом соединений.
+ * Сериализация запросов и разбор ответов — те же, что у telegrambots
+ * ({@link PartialBotApiMethod#deserializeResponse}), поэтому ошибки Telegram
+ * приходят как {@link org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException}
+ * с кодом и retry_after.
+ * <p>
+ * Файлы Telegram ({@link #downloadFile}) качаются через тот же пул соединений. Адрес
+ * скачивания содержит токен бота и не должен уходить за пределы бота.
+ */
+@Component
+@Slf4j
+public class TelegramApiClient {
+
+    private static final MediaType VIDEO_MP4 = MediaType.parseMediaType("video/mp4");
+
+    private final WebClient webClient;
+    private final WebClient fileClient;
+    private final ObjectMapper objectMapper;
+
+    public TelegramApiClient(ObjectMapper objectMapper,
+                             @Value("${telegram.bot.token}") String botToken,
+                             @Value("${telegram.bot.api-url:https://api.telegram.org}") String apiUrl,
+                             @Value("${telegram.bot.api-client.max-connections:100}") int maxConnections,
+                             @Value("${telegram.bot.api-client.response-timeout:60s}") Duration responseTimeout) {
+        this.objectMapper = objectMapper;
+
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("telegram-api")
+                .maxConnections(maxConnections)
+                .pendingAcquireTimeout(Duration.ofSeconds(30))
+                .maxIdleTime(Duration.ofSeconds(30))
+                .build();
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .responseTimeout(responseTimeout)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+
+        this.webClient = WebClient.builder()
+                .baseUrl(apiUrl + "/bot" + botToken)
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .build();
+        this.fileClient = WebClient.builder()
+                .baseUrl(apiUrl + "/file/bot" + botToken)
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .build();
+    }
+
+    /**
+     * Скачивает файл по file_path из GetFile потоком буферов; буферы освобождает подписчик.
+     */
+    public Flux<DataBuffer> downloadFile(String filePath) {
+        return fileClient.get()
+                // file_path вида photos/file_1.jpg: слэши — часть пути, а не экранируемая переменная
+                .uri(uri -> uri.path("/" + filePath).build())
+                .retrieve()
+                .bodyToFlux(DataBuffer.class);
+    }
+
+    /**
+     * Выполняет JSON-метод Bot API.
+     */
+    public <T extends Serializable> Mono<T> execute(BotApiMethod<T> method) {
+        return Mono.fromCallable(() -> {
+                    method.validate();
+                    return objectMapper.writeValueAsBytes(method);
+                })
+                .flatMap(body -> webClient.post()
+                        .uri("/{method}", method.getMethod())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(body)
+                        .exchangeToMono(response -> response.bodyToMono(String.class)))
+                .flatMap(response -> Mono.fromCallable(() -> method.deserializeResponse(response)));
+    }
+
+    /**
+     * Отправляет видео: ссылка или file_id идут в JSON, новый файл — multipart-загрузкой.
+     */
+    public Mono<Message> sendVideo(SendVideo video) {
+        Mono<String> response;
+        if (video.getVideo().isNew()) {
+            MultipartBodyBuilder builder = multipart(video);
+            InputFile file = video.getVideo();
+            if (file.getNewMediaFile() != null) {
+                builder.part(SendVideo.VIDEO_FIELD, new FileSystemResource(file.getNewMediaFile()))
+                        .filename(file.getMediaName());
+            } else {
+                builder.part(SendVideo.VIDEO_FIELD, new InputStreamResource(file.getNewMediaStream()))
+                        .filename(file.getMediaName());
+            }
+            response = postMultipart(video, builder);
+        } else {
+            response = Mono.fromCallable(() -> {
+                        video.validate();
+                        return objectMapper.writeValueAsBytes(video);
+                    })
+                    .flatMap(body -> webClient.post()
+                            .uri("/{method}", video.getMethod())
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(body)
+                            .exchangeToMono(r -> r.bodyToMono(String.class)));
+        }
+        return response.flatMap(body -> Mono.fromCallable(() -> video.deserializeResponse(body)));
+    }
+
+    /**
+     * Загружает видео из потока буферов, не собирая файл в памяти: буферы по мере
+     * поступления пишутся в тело multipart-запроса и сразу освобождаются.
+     * Поле video в {@code video} не используется.
+     *
+     * @param content содержимое MP4; подписка на него происходит при отправке запроса
+     */
+    public Mono<Message> uploadVideo(SendVideo video, Publisher<DataBuffer> content, String fileName) {
+        MultipartBodyBuilder builder = multipart(video);
+        builder.asyncPart(SendVideo.VIDEO_FIELD, content, DataBuffer.class)
+                .filename(fileName)
+                .contentType(VIDEO_MP4);
+        return postMultipart(video, builder)
+                .flatMap(body -> Mono.fromCallable(() -> video.deserializeResponse(body)));
+    }
+
+    private Mono<String> postMultipart(SendVideo video, MultipartBodyBuilder builder) {
+        return webClient.post()
+                .uri("/{method}", video.getMethod())
+                .contentType(MediaType.MULTIPART_FORM_DATA)
+                .body(BodyInserters.fromMultipartData(builder.build()))
+                .exchangeToMono(r -> r.bodyToMono(String.class));
+    }
+
+    /**
+     * Поля запроса, кроме самого видео.
+     */
+    private static MultipartBodyBuilder multipart(SendVideo video) {
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part(SendVideo.CHATID_FIELD, video.getChatId());
+        if (video.getCaption() != null) {
+            builder.part(SendVideo.CAPTION_FIELD, video.getCaption());
+        }
+        if (video.getSupportsStreaming() != null) {
+            builder.part(SendVideo.SUPPORTSSTREAMING_FIELD, String.valueOf(video.getSupportsStreaming()));
+        }
+        return builder;
+    }
+}
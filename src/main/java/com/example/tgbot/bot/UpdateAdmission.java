@@ -0,0 +1,331 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Входной контроль апдейтов перед {@link SoraVideoBot}.
+ * <ul>
+ *     <li>повторные доставки Telegram с тем же update_id отбрасываются;</li>
+ *     <li>апдейты ждут в ограниченной очереди с приоритетами: callback-запросы и /start
+ *     впереди обычных сообщений, устаревшие сообщения — в самом конце. Приоритет действует
+ *     только между чатами: внутри чата апдейты идут строго по порядку прихода;</li>
+ *     <li>при переполнении вытесняется наименее важный апдейт, а пользователь сразу
+ *     получает ответ «бот перегружен» — вебхук всегда отвечает 200 и Telegram не
+ *     переотправляет пачку;</li>
+ *     <li>навигация по меню в свободном чате обрабатывается сразу, а её сообщение
+ *     возвращается в ответе вебхука без отдельного запроса к Bot API.</li>
+ * </ul>
+ */
+@Component
+@Slf4j
+public class UpdateAdmission {
+
+    private static final String BUSY_TEXT = "⏳ Бот сейчас перегружен. Пожалуйста, повторите попытку через минуту.";
+
+    private final SoraVideoBot soraVideoBot;
+    private final TelegramApiClient telegramApiClient;
+    private final int queueCapacity;
+    private final long staleAfterSeconds;
+    private final Semaphore inFlight;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final TreeSet<PendingUpdate> queue = new TreeSet<>(
+            Comparator.comparingInt((PendingUpdate p) -> p.priority().ordinal())
+                    .thenComparingLong(PendingUpdate::seq));
+    private final AtomicLong seq = new AtomicLong();
+    private final Map<Integer, Boolean> recentUpdateIds;
+    /** Апдейты каждого чата, которые ждут в очереди или передаются в ящик чата. */
+    private final Map<Long, ChatBacklog> queuedPerChat = new HashMap<>();
+
+    private final Counter admittedCounter;
+    private final Counter duplicateCounter;
+    private final Counter queueFullCounter;
+    private final Counter evictedCounter;
+    private final Counter mailboxFullCounter;
+
+    private volatile Thread drainer;
+
+    public UpdateAdmission(SoraVideoBot soraVideoBot,
+                           TelegramApiClient telegramApiClient,
+                           MeterRegistry meterRegistry,
+                           @Value("${telegram.bot.ingress.queue-capacity:1000}") int queueCapacity,
+                           @Value("${telegram.bot.ingress.max-in-flight:200}") int maxInFlight,
+                           @Value("${telegram.bot.ingress.stale-after:60s}") Duration staleAfter,
+                           @Value("${telegram.bot.ingress.dedup-window:10000}") int dedupWindow) {
+        this.soraVideoBot = soraVideoBot;
+        this.telegramApiClient = telegramApiClient;
+        this.queueCapacity = queueCapacity;
+        this.staleAfterSeconds = staleAfter.toSeconds();
+        this.inFlight = new Semaphore(maxInFlight);
+        this.recentUpdateIds = new LinkedHashMap<>(dedupWindow * 4 / 3 + 1) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > dedupWindow;
+            }
+        };
+        this.admittedCounter = meterRegistry.counter("bot.ingress.updates", "result", "admitted");
+        this.duplicateCounter = meterRegistry.counter("bot.ingress.updates", "result", "duplicate");
+        this.queueFullCounter = meterRegistry.counter("bot.ingress.updates", "result", "shed_queue_full");
+        this.evictedCounter = meterRegistry.counter("bot.ingress.updates", "result", "shed_evicted");
+        this.mailboxFullCounter = meterRegistry.counter("bot.ingress.updates", "result", "shed_mailbox_full");
+        meterRegistry.gauge("bot.ingress.queue.size", queue, TreeSet::size);
+    }
+
+    @PostConstruct
+    void start() {
+        Thread thread = new Thread(this::drainLoop, "bot-ingress");
+        thread.setDaemon(true);
+        thread.start();
+        drainer = thread;
+    }
+
+    @PreDestroy
+    void stop() {
+        Thread thread = drainer;
+        drainer = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Принимает апдейт из вебхука. Блокируется только на быстрой навигации по меню,
+     * которая выполняется прямо в потоке вебхука; всё остальное уходит в очередь.
+     *
+     * @return метод для ответа прямо в теле вебхука (ответ быстрого пути или «бот перегружен»), либо null
+     */
+    public BotApiMethod<?> admit(Update update) {
+        long receivedAt = System.nanoTime();
+        if (isDuplicate(update)) {
+            duplicateCounter.increment();
+            log.debug("Skipping redelivered update {}", update.getUpdateId());
+            return null;
+        }
+        long chatId = soraVideoBot.resolveChatId(update);
+        if (soraVideoBot.canRunInline(update)) {
+            SoraVideoBot.InlineOutcome outcome = tryInline(update, chatId, receivedAt);
+            if (outcome.handled()) {
+                return outcome.reply();
+            }
+        }
+        Priority priority = priorityOf(update);
+        PendingUpdate pending;
+        PendingUpdate evicted = null;
+        lock.lock();
+        try {
+            ChatBacklog backlog = queuedPerChat.get(chatId);
+            if (backlog != null && backlog.floor.ordinal() > priority.ordinal()) {
+                // У чата уже есть апдейты в очереди: новый не должен их обогнать, поэтому
+                // получает приоритет не выше худшего из них и при равенстве встаёт после по seq
+                priority = backlog.floor;
+            }
+            pending = new PendingUpdate(update, chatId, priority, seq.incrementAndGet(), receivedAt);
+            if (queue.size() >= queueCapacity) {
+                PendingUpdate worst = queue.last();
+                if (worst.priority().ordinal() <= pending.priority().ordinal()) {
+                    // Новый апдейт не важнее худшего в очереди — отбрасываем сам апдейт
+                    queueFullCounter.increment();
+                    log.warn("Ingress queue is full, shedding update {}", update.getUpdateId());
+                    return busyReply(update);
+                }
+                queue.pollLast();
+                evicted = worst;
+                release(worst.chatId());
+            }
+            queue.add(pending);
+            queuedPerChat.computeIfAbsent(chatId, id -> new ChatBacklog()).add(pending.priority());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        admittedCounter.increment();
+        if (evicted != null) {
+            evictedCounter.increment();
+            log.warn("Ingress queue is full, evicted update {} in favour of {}", evicted.update().getUpdateId(), update.getUpdateId());
+            replyBusyAsync(evicted.update());
+        }
+        return null;
+    }
+
+    private void drainLoop() {
+        while (drainer != null) {
+            try {
+                inFlight.acquire();
+                PendingUpdate next = take();
+                boolean accepted;
+                try {
+                    accepted = soraVideoBot.submitUpdate(next.update(), next.receivedAt(), inFlight::release);
+                } finally {
+                    // Счётчик уменьшается только после передачи в ящик чата: быстрый путь
+                    // не должен обогнать апдейт, который ещё в пути между очередями
+                    lock.lock();
+                    try {
+                        release(next.chatId());
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                if (!accepted) {
+                    inFlight.release();
+                    mailboxFullCounter.increment();
+                    replyBusyAsync(next.update());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in ingress drain loop", e);
+            }
+        }
+    }
+
+    /**
+     * Пытается обработать апдейт сразу в потоке вебхука.
+     * Не срабатывает, если у чата есть апдейты в очереди или занят лимит одновременной обработки.
+     */
+    private SoraVideoBot.InlineOutcome tryInline(Update update, long chatId, long receivedAt) {
+        lock.lock();
+        try {
+            if (queuedPerChat.containsKey(chatId)) {
+                return SoraVideoBot.InlineOutcome.NOT_HANDLED;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!inFlight.tryAcquire()) {
+            return SoraVideoBot.InlineOutcome.NOT_HANDLED;
+        }
+        try {
+            SoraVideoBot.InlineOutcome outcome = soraVideoBot.tryProcessInline(update, receivedAt);
+            if (outcome.handled()) {
+                admittedCounter.increment();
+            }
+            return outcome;
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Вызывается под lock.
+     */
+    private void release(long chatId) {
+        ChatBacklog backlog = queuedPerChat.get(chatId);
+        if (backlog != null && --backlog.count == 0) {
+            queuedPerChat.remove(chatId);
+        }
+    }
+
+    private PendingUpdate take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                notEmpty.await();
+            }
+            return queue.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isDuplicate(Update update) {
+        Integer updateId = update.getUpdateId();
+        if (updateId == null) {
+            return false;
+        }
+        synchronized (recentUpdateIds) {
+            return recentUpdateIds.put(updateId, Boolean.TRUE) != null;
+        }
+    }
+
+    private Priority priorityOf(Update update) {
+        if (update.hasCallbackQuery()) {
+            return Priority.HIGH;
+        }
+        if (update.hasMessage()) {
+            Message message = update.getMessage();
+            if (message.hasText() && message.getText().equalsIgnoreCase("/start")) {
+                return Priority.HIGH;
+            }
+            if (message.getDate() != null
+                    && System.currentTimeMillis() / 1000 - message.getDate() > staleAfterSeconds) {
+                return Priority.LOW;
+            }
+        }
+        return Priority.NORMAL;
+    }
+
+    private BotApiMethod<?> busyReply(Update update) {
+        if (update.hasCallbackQuery()) {
+            AnswerCallbackQuery answer = new AnswerCallbackQuery();
+            answer.setCallbackQueryId(update.getCallbackQuery().getId());
+            answer.setText(BUSY_TEXT);
+            return answer;
+        }
+        if (update.hasMessage()) {
+            return new SendMessage(String.valueOf(update.getMessage().getChatId()), BUSY_TEXT);
+        }
+        return null;
+    }
+
+    private void replyBusyAsync(Update update) {
+        BotApiMethod<?> reply = busyReply(update);
+        if (reply == null) {
+            return;
+        }
+        telegramApiClient.execute(reply).subscribe(null,
+                e -> log.warn("Failed to send busy reply for update {}: {}", update.getUpdateId(), e.getMessage()));
+    }
+
+    private enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Очередь одного чата: сколько апдейтов ждёт и худший приоритет среди них.
+     * Худший приоритет не повышается, пока очередь чата не опустеет целиком.
+     */
+    private static final class ChatBacklog {
+        private int count;
+        private Priority floor = Priority.HIGH;
+
+        void add(Priority priority) {
+            count++;
+            if (priority.ordinal() > floor.ordinal()) {
+                floor = priority;
+            }
+        }
+    }
+
+    /**
+     * @param receivedAt System.nanoTime() приёма вебхука
+     */
+    private record PendingUpdate(Update update, long chatId, Priority priority, long seq, long receivedAt) {
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.tgbot.bot;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+
+/**
+ * Компактная бинарная сериализация {@link UserSession} для внешнего хранилища.
+ * Пишутся только состояние, выбранный формат и история сообщений
+ * (id шаблона, аргументы и номер записи).
+ */
+final class UserSessionCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private UserSessionCodec() {
+    }
+
+    static byte[] encode(UserSession session) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(session.getState() == null ? -1 : session.getState().ordinal());
+            writeString(out, session.getSelectedFormat());
+            out.writeByte(session.getMessageHistory().size());
+            for (HistoryEntry entry : session.getMessageHistory()) {
+                out.writeByte(entry.template().getId());
+                out.writeLong(entry.seq());
+                List<String> args = entry.args();
+                out.writeByte(args.size());
+                for (String arg : args) {
+                    writeString(out, arg);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static UserSession decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalStateException("Unsupported session format version " + version);
+            }
+            int state = in.readByte();
+            UserSession session = new UserSession(state < 0 ? null : BotState.values()[state], readString(in));
+            int historySize = in.readUnsignedByte();
+            for (int i = 0; i < historySize; i++) {
+                MessageTemplate template = MessageTemplate.byId(in.readUnsignedByte());
+                long seq = in.readLong();
+                String[] args = new String[in.readUnsignedByte()];
+                for (int a = 0; a < args.length; a++) {
+                    args[a] = readString(in);
+                }
+                session.getMessageHistory().restore(new HistoryEntry(template, args, seq));
+            }
+            return session;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.tgbot.bot;
+
+import com.example.tgbot.service.GeneratedVideo;
+import com.example.tgbot.service.GenerationJobService;
+import com.example.tgbot.service.VideoFileIdCache;
+import com.example.tgbot.service.VideoGenerationService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+
+/**
+ * Доставка готового видео в чат, от дешёвого способа к дорогому:
+ * <ol>
+ *     <li>по file_id, если это видео уже отправлялось в этот чат ({@link #deliverCached});</li>
+ *     <li>по ссылке Kie.ai — файл скачивает сам Telegram;</li>
+ *     <li>если Telegram не смог скачать файл по ссылке (большой файл, медленный источник), бот
+ *     скачивает MP4 и сразу же передаёт его в multipart-загрузку: буферы reactor-netty
+ *     идут из входящего соединения в исходящее без копирования в кучу и без сборки файла в памяти.</li>
+ * </ol>
+ * Остальные ошибки отправки (бот заблокирован, чат не найден, лимиты) загрузкой не исправить,
+ * поэтому они сразу считаются неудачей доставки.
+ * <p>
+ * Полученный от Telegram file_id запоминается в {@link VideoFileIdCache}, задача в generation_jobs
+ * переходит в DELIVERED только после ответа Telegram. При неудаче задачу завершает вызывающий:
+ * FAILED делается вместе с возвратом генерации.
+ * <p>
+ * Метрики: bot.video.delivery (время, теги method, flow и outcome) и bot.video.delivery.bytes
+ * (байты, прокачанные через бота при загрузке).
+ */
+@Component
+@Slf4j
+public class VideoDelivery {
+
+    private static final String METHOD_FILE_ID = "file_id";
+    private static final String METHOD_URL = "url";
+    private static final String METHOD_UPLOAD = "upload";
+
+    /** Описания ошибок Bot API, с которыми Telegram отвечает, когда не смог скачать файл по ссылке. */
+    private static final List<String> URL_FETCH_ERRORS = List.of(
+            "failed to get http url content",
+            "wrong file identifier/http url specified",
+            "wrong type of the web page content");
+
+    /** Описания ошибок Bot API, с которыми Telegram отвергает сам file_id. */
+    private static final List<String> FILE_ID_ERRORS = List.of(
+            "wrong file identifier",
+            "wrong remote file identifier");
+
+    private final OutboundSender outboundSender;
+    private final TelegramApiClient telegramApiClient;
+    private final VideoFileIdCache videoFileIdCache;
+    private final GenerationJobService generationJobService;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary uploadedBytes;
+    private final WebClient downloadClient;
+
+    public VideoDelivery(OutboundSender outboundSender,
+                         TelegramApiClient telegramApiClient,
+                         VideoFileIdCache videoFileIdCache,
+                         GenerationJobService generationJobService,
+                         MeterRegistry meterRegistry,
+                         @Value("${telegram.bot.delivery.download-timeout:120s}") Duration downloadTimeout) {
+        this.outboundSender = outboundSender;
+        this.telegramApiClient = telegramApiClient;
+        this.videoFileIdCache = videoFileIdCache;
+        this.generationJobService = generationJobService;
+        this.meterRegistry = meterRegistry;
+        this.uploadedBytes = DistributionSummary.builder("bot.video.delivery.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        HttpClient httpClient = HttpClient.create()
+                .followRedirect(true)
+                .responseTimeout(downloadTimeout);
+        this.downloadClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .build();
+    }
+
+    /**
+     * Отправляет сгенерированное видео: по ссылке, а при отказе Telegram — загрузкой файла.
+     */
+    public Mono<Message> deliver(long chatId, GeneratedVideo video) {
+        String flow = VideoGenerationService.flowOf(video.model());
+        return timed(METHOD_URL, flow, send(chatId, () -> telegramApiClient.sendVideo(newSendVideo(chatId, new InputFile(video.url())))))
+                .onErrorResume(VideoDelivery::isUrlFetchFailure, e -> {
+                    log.warn("Telegram could not fetch video {} by url, uploading it: {}", video.taskId(), e.getMessage());
+                    return timed(METHOD_UPLOAD, flow, send(chatId, () -> upload(chatId, video)));
+                })
+                .flatMap(sent -> rememberFileId(chatId, video, sent)
+                        .then(updateJob(video, () -> generationJobService.markDelivered(video.taskId())))
+                        .thenReturn(sent));
+    }
+
+    /**
+     * Отправляет видео, уже загруженное в Telegram.
+     */
+    public Mono<Message> deliverCached(long chatId, String flow, String fileId) {
+        return timed(METHOD_FILE_ID, flow, send(chatId, () -> telegramApiClient.sendVideo(newSendVideo(chatId, new InputFile(fileId)))));
+    }
+
+    private Mono<Message> upload(long chatId, GeneratedVideo video) {
+        // Подписка на скачивание происходит, когда клиент Bot API начинает писать тело запроса
+        AtomicLong bytes = new AtomicLong();
+        Flux<DataBuffer> content = downloadClient.get()
+                .uri(video.url())
+                .retrieve()
+                .bodyToFlux(DataBuffer.class)
+                .doOnNext(buffer -> bytes.addAndGet(buffer.readableByteCount()));
+        return telegramApiClient.uploadVideo(newSendVideo(chatId, new InputFile(video.url())), content, video.taskId() + ".mp4")
+                .doFinally(signal -> uploadedBytes.record(bytes.get()));
+    }
+
+    private Mono<Message> send(long chatId, Supplier<Mono<Message>> call) {
+        return Mono.fromFuture(() -> outboundSender.submit(chatId, OutboundSender.Lane.VIDEO, call));
+    }
+
+    /**
+     * Telegram не смог скачать видео по ссылке — только в этом случае есть смысл загружать файл самим.
+     */
+    static boolean isUrlFetchFailure(Throwable error) {
+        return hasDescription(error, URL_FETCH_ERRORS);
+    }
+
+    /**
+     * Telegram не принял file_id сохранённого видео — только в этом случае его стоит забыть.
+     */
+    static boolean isFileIdRejected(Throwable error) {
+        return hasDescription(error, FILE_ID_ERRORS);
+    }
+
+    private static boolean hasDescription(Throwable error, List<String> descriptions) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (!(cause instanceof TelegramApiRequestException request) || request.getApiResponse() == null) {
+            return false;
+        }
+        String description = request.getApiResponse().toLowerCase(Locale.ROOT);
+        return descriptions.stream().anyMatch(description::contains);
+    }
+
+    private Mono<Void> rememberFileId(long chatId, GeneratedVideo video, Message sent) {
+        String fileId = sent.hasVideo() ? sent.getVideo().getFileId()
+                : sent.hasDocument() ? sent.getDocument().getFileId() : null;
+        if (fileId == null) {
+            return Mono.empty();
+        }
+        return Mono.fromRunnable(() -> videoFileIdCache.remember(chatId, video, fileId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(e -> {
+                    // Не запомнили — следующий повтор просто пойдёт по обычному пути
+                    log.warn("Failed to store file_id of video {}: {}", video.taskId(), e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private Mono<Void> updateJob(GeneratedVideo video, Runnable update) {
+        return Mono.fromRunnable(update)
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(e -> {
+                    // Задача останется SUCCEEDED: после рестарта видео отправится ещё раз
+                    log.warn("Failed to update generation job {}: {}", video.taskId(), e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private Mono<Message> timed(String method, String flow, Mono<Message> delivery) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return delivery.doOnEach(signal -> {
+                if (signal.isOnNext() || signal.isOnError()) {
+                    sample.stop(Timer.builder("bot.video.delivery")
+                            .tag("method", method)
+                            .tag("flow", flow)
+                            .tag("outcome", signal.isOnError() ? "failure" : "success")
+                            .register(meterRegistry));
+                }
+            });
+        });
+    }
+
+    private static SendVideo newSendVideo(long chatId, InputFile file) {
+        SendVideo video = new SendVideo(String.valueOf(chatId), file);
+        video.setSupportsStreaming(true);
+        return video;
+    }
+}
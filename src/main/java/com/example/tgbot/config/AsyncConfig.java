@@ -1,25 +1,40 @@
 package com.example.tgbot.config;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.EnableAsync;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 
 @Configuration
 @EnableAsync
+@EnableScheduling
+@Slf4j
 public class AsyncConfig {
 
 
-    @Bean(name = "botExecutor")
-    public TaskExecutor taskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(10);
-        executor.setMaxPoolSize(20);
-        executor.setQueueCapacity(100);
-        executor.setThreadNamePrefix("bot-exec-");
-        executor.initialize();
-        return executor;
+    /**
+     * Исполнитель обработки апдейтов. При spring.threads.virtual.enabled на Java 21+ —
+     * виртуальный поток на задачу, иначе — пул платформенных потоков. Порядок и глубину
+     * очереди по чату обеспечивает {@link com.example.tgbot.bot.ChatUpdateDispatcher}.
+     */
+    @Bean(name = "updateExecutor")
+    public Executor updateExecutor(Environment environment) {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            log.info("Running bot-exec-* tasks on virtual threads");
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("bot-exec-");
+            executor.setVirtualThreads(true);
+            return executor;
+        }
+        log.info("Running bot-exec-* tasks on a platform thread pool");
+        return Executors.newFixedThreadPool(20, new CustomizableThreadFactory("bot-exec-"));
     }
-}
\ No newline at end of file
+}
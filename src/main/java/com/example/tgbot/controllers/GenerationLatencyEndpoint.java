@@ -0,0 +1,24 @@
+package com.example.tgbot.controllers;
+
+import com.example.tgbot.service.CompletionLatencyHistogram;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * /actuator/generationlatency — гистограммы времени генерации по моделям.
+ */
+@Component
+@Endpoint(id = "generationlatency")
+@RequiredArgsConstructor
+public class GenerationLatencyEndpoint {
+    private final CompletionLatencyHistogram completionLatencyHistogram;
+
+    @ReadOperation
+    public Map<String, Object> histograms() {
+        return completionLatencyHistogram.snapshot();
+    }
+}
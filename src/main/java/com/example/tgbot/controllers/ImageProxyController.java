@@ -0,0 +1,47 @@
+package com.example.tgbot.controllers;
+
+import com.example.tgbot.bot.ImageIngestion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Отдаёт Kie.ai картинки пользователей по подписанным ссылкам из {@link ImageIngestion}.
+ * На любую неподходящую ссылку (подделанную, истёкшую, на удалённый файл) — 404,
+ * без подсказки, что именно не так.
+ */
+@RestController
+@RequestMapping("/images")
+@Slf4j
+public class ImageProxyController {
+    private final ImageIngestion imageIngestion;
+
+    public ImageProxyController(ImageIngestion imageIngestion) {
+        this.imageIngestion = imageIngestion;
+    }
+
+    @GetMapping("/{name}")
+    public ResponseEntity<Resource> getImage(@PathVariable String name,
+                                             @RequestParam(name = "expires", defaultValue = "0") long expires,
+                                             @RequestParam(name = "sig", required = false) String signature) {
+        Optional<Path> file = imageIngestion.resolve(name, expires, signature);
+        if (file.isEmpty()) {
+            log.debug("Rejected image request for {}", name);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        Resource resource = new FileSystemResource(file.get());
+        return ResponseEntity.ok()
+                .contentType(MediaTypeFactory.getMediaType(resource).orElse(MediaType.APPLICATION_OCTET_STREAM))
+                .cacheControl(CacheControl.noStore())
+                .body(resource);
+    }
+}
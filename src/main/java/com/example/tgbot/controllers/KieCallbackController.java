@@ -0,0 +1,53 @@
+package com.example.tgbot.controllers;
+
+import com.example.tgbot.service.KieTaskPoller;
+import com.example.tgbot.web.RecordInfoResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Принимает колбэки Kie.ai о завершении задач (callBackUrl из createTask).
+ * Подлинность проверяется по секретному токену, который мы сами кладём в callBackUrl.
+ * Колбэк для задачи, которую ждёт другая реплика, передаётся ей через generation_jobs.
+ */
+@RestController
+@RequestMapping("/kieai")
+@Slf4j
+public class KieCallbackController {
+    private final KieTaskPoller kieTaskPoller;
+    private final byte[] expectedToken;
+
+    public KieCallbackController(KieTaskPoller kieTaskPoller,
+                                 @Value("${kieai.callback.token:}") String callbackToken) {
+        this.kieTaskPoller = kieTaskPoller;
+        this.expectedToken = callbackToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PostMapping("/callback")
+    public ResponseEntity<Void> onTaskCompleted(@RequestParam(name = "token", required = false) String token,
+                                                @RequestBody RecordInfoResponse callback) {
+        if (!isTokenValid(token)) {
+            log.warn("Rejected Kie.ai callback with invalid token");
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        log.debug("Kie.ai callback received: {}", callback);
+        if (!kieTaskPoller.resolve(callback)) {
+            // Задача уже завершена опросом, неизвестна или ещё не готова — повторять колбэк не нужно
+            log.debug("Kie.ai callback for unknown or unfinished task: {}", callback.getData());
+        }
+        return ResponseEntity.ok().build();
+    }
+
+    private boolean isTokenValid(String token) {
+        if (expectedToken.length == 0 || token == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(expectedToken, token.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,32 +1,58 @@
 package com.example.tgbot.controllers;
 
-import com.example.tgbot.bot.SoraVideoBot;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.example.tgbot.bot.UpdateAdmission;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.objects.Update;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
 @RestController
 @RequestMapping("/telegram")
-@RequiredArgsConstructor
 @Slf4j
 public class WebhookController {
-    private final SoraVideoBot soraVideoBot;
-    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final UpdateAdmission updateAdmission;
+    private final ObjectMapper objectMapper;
+    private final double rawLogSampleRate;
+
+    public WebhookController(UpdateAdmission updateAdmission,
+                             ObjectMapper objectMapper,
+                             @Value("${telegram.bot.raw-update-log-sample-rate:1.0}") double rawLogSampleRate) {
+        this.updateAdmission = updateAdmission;
+        this.objectMapper = objectMapper;
+        this.rawLogSampleRate = rawLogSampleRate;
+    }
 
+    /**
+     * Принимает тело вебхука как есть: апдейт разбирается один раз, а исходный JSON
+     * логируется без повторной сериализации и только при включённом debug.
+     */
     @PostMapping("/update")
-    public BotApiMethod<?> onUpdateReceived(@RequestBody Update update) {
-        log.debug("Update received!");
+    public BotApiMethod<?> onUpdateReceived(@RequestBody byte[] body) {
+        if (log.isDebugEnabled() && shouldSampleRawUpdate()) {
+            log.debug("Json update: {}", new String(body, StandardCharsets.UTF_8));
+        }
+        Update update;
         try {
-            log.debug("Json update: {}", jsonMapper.writeValueAsString(update));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+            update = objectMapper.readValue(body, Update.class);
+        } catch (IOException e) {
+            // Повторная доставка того же тела ничего не исправит — отвечаем 200
+            log.warn("Failed to parse update body: {}", e.getMessage());
+            return null;
+        }
+        try {
+            return updateAdmission.admit(update);
+        } catch (Exception e) {
+            // Ошибка не должна превращаться в 5xx: Telegram переотправит всю пачку апдейтов
+            log.error("Failed to admit update {}", update.getUpdateId(), e);
+            return null;
         }
-        return soraVideoBot.onWebhookUpdateReceived(update);
     }
 
     @GetMapping("/test")
@@ -34,4 +60,8 @@ public class WebhookController {
         log.debug("Test method called");
         return ResponseEntity.ok().body("Hello world!");
     }
+
+    private boolean shouldSampleRawUpdate() {
+        return rawLogSampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rawLogSampleRate;
+    }
 }
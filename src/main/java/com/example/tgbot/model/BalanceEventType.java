@@ -0,0 +1,13 @@
+package com.example.tgbot.model;
+
+
+public enum BalanceEventType {
+
+    GIFT,
+
+    PURCHASE,
+
+    DEBIT,
+
+    REFUND
+}
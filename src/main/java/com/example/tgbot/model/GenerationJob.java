@@ -0,0 +1,95 @@
+package com.example.tgbot.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+
+/**
+ * Задача генерации в Kie.ai. Строка появляется вместе со списанием генерации, ещё до createTask,
+ * чтобы после рестарта можно было продолжить опрос уже оплаченных задач или вернуть генерацию.
+ * Задачу ведёт одна реплика — владелец аренды (owner, leaseUntil).
+ */
+@Entity
+@Table(name = "generation_jobs")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class GenerationJob {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    /** Задача Kie.ai; пусто, пока задача в PENDING. */
+    @Column(name = "task_id", unique = true)
+    private String taskId;
+
+    /** Id списания генерации в balance_events, под которое создана задача. */
+    @Column(name = "correlation_id", nullable = false, unique = true)
+    private String correlationId;
+
+    @Column(name = "chat_id", nullable = false)
+    private Long chatId;
+
+    @Column(name = "model", nullable = false)
+    private String model;
+
+    @Column(name = "format")
+    private String format;
+
+    @Column(name = "prompt")
+    private String prompt;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "state", nullable = false)
+    private GenerationJobState state;
+
+    @Column(name = "result_url")
+    private String resultUrl;
+
+    /** file_id отправленного видео: повторная отправка не требует повторной загрузки. */
+    @Column(name = "telegram_file_id")
+    private String telegramFileId;
+
+    /** Колбэк Kie.ai, принятый репликой, которая эту задачу не ждала. */
+    @Column(name = "callback_payload")
+    private String callbackPayload;
+
+    @Column(name = "fail_message")
+    private String failMessage;
+
+    /** Реплика, которая ведёт задачу и продлевает аренду. */
+    @Column(name = "owner")
+    private String owner;
+
+    /** После этого момента задачу может забрать другая реплика. */
+    @Column(name = "lease_until")
+    private Instant leaseUntil;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt;
+
+    @Column(name = "completed_at")
+    private Instant completedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        Instant now = Instant.now();
+        this.createdAt = now;
+        this.updatedAt = now;
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        this.updatedAt = Instant.now();
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.tgbot.model;
+
+
+/**
+ * Жизненный цикл задачи генерации:
+ * PENDING → RUNNING → SUCCEEDED → DELIVERED, из любого незавершённого состояния — в FAILED.
+ */
+public enum GenerationJobState {
+
+    /** Генерация списана, задача в Kie.ai ещё не создана (ждёт места в очереди или загрузки картинки). */
+    PENDING,
+
+    /** Задача создана в Kie.ai, результата ещё нет. */
+    RUNNING,
+
+    /** Kie.ai вернул ссылку на видео, но пользователь его ещё не получил. */
+    SUCCEEDED,
+
+    /** Видео отправлено в чат. */
+    DELIVERED,
+
+    /** Генерация или доставка не удалась, генерация возвращена. */
+    FAILED;
+
+    public boolean isTerminal() {
+        return this == DELIVERED || this == FAILED;
+    }
+
+    public boolean canMoveTo(GenerationJobState next) {
+        return switch (this) {
+            case PENDING -> next == RUNNING || next == FAILED;
+            case RUNNING -> next == SUCCEEDED || next == FAILED;
+            case SUCCEEDED -> next == DELIVERED || next == FAILED;
+            case DELIVERED, FAILED -> false;
+        };
+    }
+}
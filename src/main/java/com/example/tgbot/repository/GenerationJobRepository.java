@@ -0,0 +1,74 @@
+package com.example.tgbot.repository;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.GenerationJobState;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface GenerationJobRepository extends JpaRepository<GenerationJob, Long> {
+    /**
+     * Задача под блокировкой строки до конца транзакции: параллельные переходы
+     * состояния (и возврат генерации вместе с ними) выполняются по очереди.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT j FROM GenerationJob j WHERE j.taskId = :taskId")
+    Optional<GenerationJob> lockByTaskId(@Param("taskId") String taskId);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT j FROM GenerationJob j WHERE j.correlationId = :correlationId")
+    Optional<GenerationJob> lockByCorrelationId(@Param("correlationId") String correlationId);
+
+    List<GenerationJob> findAllByStateInAndLeaseUntilBefore(Collection<GenerationJobState> states, Instant now);
+
+    /**
+     * Забирает задачу с истёкшей арендой. 0 — её уже забрала другая реплика,
+     * продлил владелец или задача завершилась.
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE GenerationJob j SET j.owner = :owner, j.leaseUntil = :leaseUntil " +
+            "WHERE j.id = :id AND j.leaseUntil < :now AND j.state IN :states")
+    int claim(@Param("id") Long id, @Param("owner") String owner, @Param("leaseUntil") Instant leaseUntil,
+              @Param("now") Instant now, @Param("states") Collection<GenerationJobState> states);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE GenerationJob j SET j.leaseUntil = :leaseUntil WHERE j.owner = :owner AND j.state IN :states")
+    int renewLeases(@Param("owner") String owner, @Param("leaseUntil") Instant leaseUntil,
+                    @Param("states") Collection<GenerationJobState> states);
+
+    List<GenerationJob> findAllByTaskIdInAndCallbackPayloadIsNotNull(Collection<String> taskIds);
+
+    /**
+     * Сохраняет колбэк Kie.ai для реплики, которая ждёт задачу.
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE GenerationJob j SET j.callbackPayload = :payload WHERE j.taskId = :taskId AND j.state = com.example.tgbot.model.GenerationJobState.RUNNING")
+    int storeCallbackPayload(@Param("taskId") String taskId, @Param("payload") String payload);
+
+    Optional<GenerationJob> findFirstByChatIdAndModelAndFormatAndPromptAndTelegramFileIdIsNotNullOrderByCompletedAtDesc(
+            Long chatId, String model, String format, String prompt);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE GenerationJob j SET j.telegramFileId = :fileId WHERE j.taskId = :taskId")
+    int updateTelegramFileId(@Param("taskId") String taskId, @Param("fileId") String fileId);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE GenerationJob j SET j.telegramFileId = NULL WHERE j.telegramFileId = :fileId")
+    int clearTelegramFileId(@Param("fileId") String fileId);
+}
@@ -2,11 +2,34 @@ package com.example.tgbot.repository;
 
 import com.example.tgbot.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByTelegramId(Long telegramId);
-}
\ No newline at end of file
+
+    /**
+     * Атомарно списывает одну генерацию, если баланс положительный.
+     *
+     * @return новый баланс или empty, если списывать нечего
+     */
+    @Transactional
+    @Query(value = "UPDATE users SET balance = balance - 1, updated_at = now() " +
+            "WHERE telegram_id = :telegramId AND balance > 0 RETURNING balance", nativeQuery = true)
+    Optional<Integer> debitOne(@Param("telegramId") Long telegramId);
+
+    /**
+     * Атомарно увеличивает баланс.
+     *
+     * @return новый баланс или empty, если пользователя нет
+     */
+    @Transactional
+    @Query(value = "UPDATE users SET balance = balance + :amount, updated_at = now() " +
+            "WHERE telegram_id = :telegramId RETURNING balance", nativeQuery = true)
+    Optional<Integer> credit(@Param("telegramId") Long telegramId, @Param("amount") int amount);
+}
@@ -0,0 +1,49 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.BalanceEventType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+
+/**
+ * Журнал изменений баланса (таблица balance_events), только на добавление.
+ * <p>
+ * Событие пишется в той же транзакции, что и UPDATE баланса в {@link UserService}:
+ * изменение и его запись в журнале фиксируются или откатываются вместе,
+ * поэтому журнал не теряет событий при рестарте и не содержит откатившихся изменений.
+ */
+@Component
+public class BalanceJournal {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO balance_events (telegram_id, type, amount, balance_after, task_id, correlation_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Counter writtenCounter;
+
+    public BalanceJournal(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writtenCounter = meterRegistry.counter("bot.balance.journal.events", "result", "written");
+    }
+
+    /**
+     * Записывает событие в текущей транзакции. Вызывается только внутри транзакции,
+     * изменившей баланс.
+     *
+     * @param amount        изменение баланса со знаком
+     * @param balanceAfter  баланс после изменения
+     * @param taskId        задача Kie.ai, к которой относится изменение, если она уже создана
+     * @param correlationId общий id списания под генерацию и его возврата, если есть
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(Long telegramId, BalanceEventType type, int amount, int balanceAfter,
+                       String taskId, String correlationId) {
+        jdbcTemplate.update(INSERT_SQL, telegramId, type.name(), amount, balanceAfter, taskId, correlationId);
+        writtenCounter.increment();
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.tgbot.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Сворачивает журнал balance_events в balance_snapshots и сверяет снимки с users.balance.
+ * <p>
+ * users.balance остаётся источником истины (его меняют атомарные UPDATE в {@link UserService}),
+ * снимок — независимый пересчёт из журнала. Расхождение между ними
+ * (метрика bot.balance.snapshot.drift) означает потерянные или лишние события.
+ * <p>
+ * Сворачиваются только события старше settle: к этому моменту все транзакции, получившие
+ * меньшие id, уже закоммичены. Между репликами свёртку сериализует advisory-блокировка Postgres.
+ */
+@Component
+@Slf4j
+public class BalanceSnapshotter {
+
+    private static final long LOCK_KEY = 0x62616c616e6365L;
+
+    private static final String FOLD_SQL =
+            "INSERT INTO balance_snapshots (telegram_id, balance, last_event_id, updated_at) " +
+            "SELECT telegram_id, SUM(amount), MAX(id), CURRENT_TIMESTAMP FROM balance_events " +
+            "WHERE id > ? AND id <= ? GROUP BY telegram_id " +
+            "ON CONFLICT (telegram_id) DO UPDATE SET " +
+            "balance = balance_snapshots.balance + EXCLUDED.balance, " +
+            "last_event_id = EXCLUDED.last_event_id, " +
+            "updated_at = EXCLUDED.updated_at";
+
+    private static final String DRIFT_SQL =
+            "SELECT COUNT(*) FROM balance_snapshots s JOIN users u ON u.telegram_id = s.telegram_id " +
+            "WHERE s.balance <> u.balance AND u.updated_at < ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration settle;
+    private final AtomicInteger drift = new AtomicInteger();
+
+    public BalanceSnapshotter(JdbcTemplate jdbcTemplate,
+                              TransactionTemplate transactionTemplate,
+                              MeterRegistry meterRegistry,
+                              @Value("${telegram.bot.balance.snapshot.settle:1m}") Duration settle) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.settle = settle;
+        meterRegistry.gauge("bot.balance.snapshot.drift", drift);
+    }
+
+    @Scheduled(fixedDelayString = "${telegram.bot.balance.snapshot.interval-ms:60000}")
+    public void snapshot() {
+        try {
+            transactionTemplate.executeWithoutResult(status -> fold());
+        } catch (Exception e) {
+            log.error("Balance snapshot failed", e);
+        }
+    }
+
+    private void fold() {
+        Boolean locked = jdbcTemplate.queryForObject("SELECT pg_try_advisory_xact_lock(?)", Boolean.class, LOCK_KEY);
+        if (!Boolean.TRUE.equals(locked)) {
+            log.debug("Balance snapshot is running on another replica");
+            return;
+        }
+        Timestamp cutoff = Timestamp.from(Instant.now().minus(settle));
+        Long from = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(last_event_id), 0) FROM balance_snapshots", Long.class);
+        Long to = jdbcTemplate.queryForObject("SELECT MAX(id) FROM balance_events WHERE id > ? AND created_at < ?",
+                Long.class, from, cutoff);
+        if (to != null) {
+            int users = jdbcTemplate.update(FOLD_SQL, from, to);
+            log.debug("Folded balance events ({}, {}] into {} snapshots", from, to, users);
+        }
+        // Сверяем только пользователей, чьи события заведомо успели свернуться
+        Timestamp settledBefore = Timestamp.from(cutoff.toInstant().minus(settle));
+        Integer mismatched = jdbcTemplate.queryForObject(DRIFT_SQL, Integer.class, settledBefore);
+        drift.set(mismatched == null ? 0 : mismatched);
+        if (drift.get() > 0) {
+            log.warn("{} balance snapshots do not match users.balance", drift.get());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.tgbot.service;
+
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Гистограмма фактического времени генерации по моделям Kie.ai.
+ * Бакеты фиксированные (в секундах), поэтому запись — один инкремент без блокировок.
+ */
+@Component
+public class CompletionLatencyHistogram {
+
+    /** Верхние границы бакетов в секундах; последний бакет — всё, что дольше. */
+    private static final long[] BUCKET_BOUNDS_SECONDS = {
+            10, 15, 20, 30, 45, 60, 75, 90, 120, 150, 180, 210, 240, 300, 360, 480, 600, 900, 1200, 1800
+    };
+
+    private final Map<String, ModelHistogram> histograms = new ConcurrentHashMap<>();
+
+    public void record(String model, Duration completionTime) {
+        if (model == null || completionTime.isNegative()) {
+            return;
+        }
+        histograms.computeIfAbsent(model, m -> new ModelHistogram()).record(completionTime.toSeconds());
+    }
+
+    /**
+     * Оценка перцентиля времени генерации (по верхней границе бакета).
+     *
+     * @return null, если по модели пока меньше minSamples замеров
+     */
+    public Duration percentile(String model, double percentile, long minSamples) {
+        ModelHistogram histogram = model == null ? null : histograms.get(model);
+        if (histogram == null) {
+            return null;
+        }
+        return histogram.percentile(percentile, minSamples);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        histograms.forEach((model, histogram) -> result.put(model, histogram.snapshot()));
+        return result;
+    }
+
+    private static final class ModelHistogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_SECONDS.length + 1);
+
+        void record(long seconds) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_SECONDS.length && seconds > BUCKET_BOUNDS_SECONDS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+        }
+
+        long total() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        Duration percentile(double percentile, long minSamples) {
+            long total = total();
+            if (total == 0 || total < minSamples) {
+                return null;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Duration.ofSeconds(BUCKET_BOUNDS_SECONDS[i]);
+                }
+            }
+            return Duration.ofSeconds(BUCKET_BOUNDS_SECONDS[BUCKET_BOUNDS_SECONDS.length - 1]);
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+                buckets.put("le_" + BUCKET_BOUNDS_SECONDS[i] + "s", counts.get(i));
+            }
+            buckets.put("gt_" + BUCKET_BOUNDS_SECONDS[BUCKET_BOUNDS_SECONDS.length - 1] + "s",
+                    counts.get(BUCKET_BOUNDS_SECONDS.length));
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("count", total());
+            result.put("p50Seconds", toSeconds(percentile(0.5, 1)));
+            result.put("p90Seconds", toSeconds(percentile(0.9, 1)));
+            result.put("p99Seconds", toSeconds(percentile(0.99, 1)));
+            result.put("buckets", buckets);
+            return result;
+        }
+
+        private static Long toSeconds(Duration duration) {
+            return duration == null ? null : duration.toSeconds();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.tgbot.service;
+
+
+/**
+ * Готовое видео Kie.ai вместе с параметрами запроса, по которым оно сгенерировано.
+ *
+ * @param url ссылка на MP4 в хранилище Kie.ai
+ */
+public record GeneratedVideo(String taskId, String model, String format, String prompt, String url) {
+}
@@ -0,0 +1,248 @@
+package com.example.tgbot.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+
+/**
+ * Ограничение числа генераций, одновременно находящихся в Kie.ai: общий лимит
+ * и отдельный бюджет на каждую модель. Разрешение берётся перед createTask
+ * и держится до конечного состояния задачи.
+ * <p>
+ * Кто не поместился, ждёт в общей очереди FIFO. Разрешения выдаются по порядку
+ * очереди; ожидающий модели, чей бюджет исчерпан, не задерживает ожидающих
+ * других моделей за ним, а новый запрос такой модели обслуживается сразу,
+ * если перед ним нет ожидающих той же модели.
+ */
+@Component
+@Slf4j
+public class GenerationConcurrencyLimiter {
+
+    private final int maxInFlight;
+    private final int maxQueue;
+    private final Map<String, Integer> modelBudgets;
+    private final MeterRegistry meterRegistry;
+    private final Counter rejectedCounter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Integer> inFlightByModel = new HashMap<>();
+    private final Map<String, Integer> queuedByModel = new HashMap<>();
+    private int inFlight;
+
+    public GenerationConcurrencyLimiter(MeterRegistry meterRegistry,
+                                        @Value("${kieai.limits.max-in-flight:50}") int maxInFlight,
+                                        @Value("${kieai.limits.max-queue:1000}") int maxQueue,
+                                        @Value("${kieai.limits.per-model:}") String perModel) {
+        this.meterRegistry = meterRegistry;
+        this.maxInFlight = maxInFlight;
+        this.maxQueue = maxQueue;
+        this.modelBudgets = parseBudgets(perModel);
+        this.rejectedCounter = meterRegistry.counter("kieai.limiter.rejected");
+        meterRegistry.gauge("kieai.limiter.in.flight", this, GenerationConcurrencyLimiter::inFlight);
+        meterRegistry.gauge("kieai.limiter.queue.size", this, GenerationConcurrencyLimiter::queueSize);
+    }
+
+    /**
+     * Ждёт свободного места для генерации модели model.
+     *
+     * @param onQueued вызывается с позицией в очереди (с 1), если разрешение не выдано сразу
+     * @return Mono с разрешением; при переполнении очереди — ошибка
+     */
+    public Mono<Permit> acquire(String model, IntConsumer onQueued) {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(model, sink, System.nanoTime());
+            Permit granted = null;
+            int position = 0;
+            lock.lock();
+            try {
+                if (hasCapacity(model) && !queuedByModel.containsKey(model)) {
+                    granted = grant(waiter);
+                } else if (queue.size() >= maxQueue) {
+                    rejectedCounter.increment();
+                } else {
+                    queue.addLast(waiter);
+                    queuedByModel.merge(model, 1, Integer::sum);
+                    position = queue.size();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (granted != null) {
+                recordWait(waiter);
+                sink.success(granted);
+                return;
+            }
+            if (position == 0) {
+                sink.error(new IllegalStateException("Generation queue is full"));
+                return;
+            }
+            sink.onCancel(() -> cancel(waiter));
+            log.debug("Generation for model {} queued at position {}", model, position);
+            onQueued.accept(position);
+        });
+    }
+
+    /**
+     * Разрешение для задачи, которая уже выполняется в Kie.ai (поднята после рестарта):
+     * выдаётся сразу, даже сверх лимита, чтобы новые задачи учитывали её нагрузку.
+     */
+    public Permit acquireRunning(String model) {
+        lock.lock();
+        try {
+            return grant(new Waiter(model, null, System.nanoTime()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasCapacity(String model) {
+        if (inFlight >= maxInFlight) {
+            return false;
+        }
+        Integer budget = modelBudgets.get(model);
+        return budget == null || inFlightByModel.getOrDefault(model, 0) < budget;
+    }
+
+    private Permit grant(Waiter waiter) {
+        inFlight++;
+        inFlightByModel.merge(waiter.model, 1, Integer::sum);
+        waiter.permit = new Permit(waiter.model);
+        return waiter.permit;
+    }
+
+    private void release(String model) {
+        Map<Waiter, Permit> granted = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            inFlight--;
+            inFlightByModel.merge(model, -1, Integer::sum);
+            Iterator<Waiter> it = queue.iterator();
+            while (it.hasNext() && inFlight < maxInFlight) {
+                Waiter waiter = it.next();
+                if (hasCapacity(waiter.model)) {
+                    it.remove();
+                    dequeued(waiter);
+                    granted.put(waiter, grant(waiter));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        granted.forEach((waiter, permit) -> {
+            recordWait(waiter);
+            waiter.sink.success(permit);
+        });
+    }
+
+    private void cancel(Waiter waiter) {
+        boolean removed;
+        lock.lock();
+        try {
+            removed = queue.remove(waiter);
+            if (removed) {
+                dequeued(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!removed && waiter.permit != null) {
+            // Разрешение выдали одновременно с отменой — возвращаем его
+            waiter.permit.release();
+        }
+    }
+
+    private void dequeued(Waiter waiter) {
+        // Нулевые счётчики удаляются: наличие ключа означает, что модель кто-то ждёт
+        queuedByModel.computeIfPresent(waiter.model, (model, count) -> count == 1 ? null : count - 1);
+    }
+
+    private void recordWait(Waiter waiter) {
+        Timer.builder("kieai.limiter.queue.wait")
+                .tag("model", waiter.model)
+                .register(meterRegistry)
+                .record(System.nanoTime() - waiter.enqueuedAt, TimeUnit.NANOSECONDS);
+    }
+
+    private static Map<String, Integer> parseBudgets(String perModel) {
+        // Формат: model1:limit1,model2:limit2
+        Map<String, Integer> budgets = new HashMap<>();
+        for (String entry : perModel.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid kieai.limits.per-model entry: " + entry);
+            }
+            budgets.put(entry.substring(0, colon).trim(), Integer.parseInt(entry.substring(colon + 1).trim()));
+        }
+        return Map.copyOf(budgets);
+    }
+
+    /**
+     * Место под одну генерацию. Повторный release ничего не делает.
+     */
+    public final class Permit {
+
+        private final String model;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(String model) {
+            this.model = model;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                GenerationConcurrencyLimiter.this.release(model);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final String model;
+        private final MonoSink<Permit> sink;
+        private final long enqueuedAt;
+        private volatile Permit permit;
+
+        Waiter(String model, MonoSink<Permit> sink, long enqueuedAt) {
+            this.model = model;
+            this.sink = sink;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.tgbot.service;
+
+import lombok.Getter;
+
+
+/**
+ * Ошибка задачи генерации, для которой уже известен taskId Kie.ai.
+ * Сообщение совпадает с исходной ошибкой.
+ */
+@Getter
+public class GenerationFailedException extends IllegalStateException {
+
+    private final String taskId;
+
+    public GenerationFailedException(String taskId, Throwable cause) {
+        super(cause.getMessage(), cause);
+        this.taskId = taskId;
+    }
+}
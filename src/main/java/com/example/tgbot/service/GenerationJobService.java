@@ -0,0 +1,170 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.GenerationJobState;
+import com.example.tgbot.model.User;
+import com.example.tgbot.repository.GenerationJobRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+
+/**
+ * Задачи генерации в generation_jobs.
+ * <p>
+ * Задача появляется в одной транзакции со списанием генерации ({@link #reserve}) и ведётся одной
+ * репликой по аренде: владелец продлевает её, пока жив, а задачу с истёкшей арендой забирает
+ * другая реплика ({@link #claimExpiredJobs}). Возврат генерации делается только вместе с переходом
+ * в FAILED, под блокировкой строки, поэтому одна генерация не возвращается дважды.
+ */
+@Service
+@Slf4j
+public class GenerationJobService {
+
+    /** Задачи, которые ещё нужно довести до пользователя или вернуть за них генерацию. */
+    private static final EnumSet<GenerationJobState> UNFINISHED =
+            EnumSet.of(GenerationJobState.PENDING, GenerationJobState.RUNNING, GenerationJobState.SUCCEEDED);
+
+    private final GenerationJobRepository generationJobRepository;
+    private final UserService userService;
+    private final Duration leaseTtl;
+    /** Владелец аренды. Свой у каждого процесса: задачи прошлого запуска забираются по истечении аренды. */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    public GenerationJobService(GenerationJobRepository generationJobRepository,
+                                UserService userService,
+                                @Value("${telegram.bot.jobs.lease-ttl:90s}") Duration leaseTtl) {
+        this.generationJobRepository = generationJobRepository;
+        this.userService = userService;
+        this.leaseTtl = leaseTtl;
+    }
+
+
+    /**
+     * Списывает генерацию и создаёт под неё задачу в PENDING. Если реплика упадёт до createTask,
+     * списание не потеряется: задачу заберут после истечения аренды и вернут генерацию.
+     *
+     * @throws IllegalStateException если генераций на балансе нет
+     */
+    @Transactional
+    public GenerationJob reserve(User user, Long chatId, String model, String format, String prompt) {
+        String correlationId = UUID.randomUUID().toString();
+        userService.consumeOneGeneration(user, correlationId);
+        GenerationJob job = GenerationJob.builder()
+                .chatId(chatId)
+                .model(model)
+                .format(format)
+                .prompt(prompt)
+                .state(GenerationJobState.PENDING)
+                .correlationId(correlationId)
+                .owner(instanceId)
+                .leaseUntil(Instant.now().plus(leaseTtl))
+                .build();
+        return generationJobRepository.save(job);
+    }
+
+    /**
+     * Задача создана в Kie.ai. Пусто, если резерв уже отменён (например, аренда истекла
+     * и генерацию вернула другая реплика) — тогда результат пользователю не отправляется.
+     */
+    @Transactional
+    public Optional<GenerationJob> start(String correlationId, String taskId) {
+        return transition(generationJobRepository.lockByCorrelationId(correlationId), correlationId,
+                GenerationJobState.RUNNING, job -> job.setTaskId(taskId));
+    }
+
+    /**
+     * Результат готов, но ещё не доставлен: после рестарта задача будет доставлена без опроса.
+     */
+    @Transactional
+    public void markSucceeded(String taskId, String resultUrl) {
+        transition(generationJobRepository.lockByTaskId(taskId), taskId, GenerationJobState.SUCCEEDED, job -> {
+            job.setResultUrl(resultUrl);
+            job.setCompletedAt(Instant.now());
+        });
+    }
+
+    @Transactional
+    public void markDelivered(String taskId) {
+        transition(generationJobRepository.lockByTaskId(taskId), taskId, GenerationJobState.DELIVERED, job -> {
+        });
+    }
+
+    /**
+     * Переводит задачу в FAILED и в той же транзакции возвращает генерацию. Если задачу уже
+     * завершили (доставили, вернули генерацию), ничего не делает.
+     *
+     * @return true, если генерация возвращена
+     */
+    @Transactional
+    public boolean markFailed(String correlationId, String failMessage) {
+        return transition(generationJobRepository.lockByCorrelationId(correlationId), correlationId,
+                GenerationJobState.FAILED, job -> {
+                    job.setFailMessage(failMessage);
+                    if (job.getCompletedAt() == null) {
+                        job.setCompletedAt(Instant.now());
+                    }
+                })
+                .map(job -> {
+                    userService.refundGeneration(job.getChatId(), job.getTaskId(), job.getCorrelationId());
+                    return true;
+                })
+                .orElse(false);
+    }
+
+    /**
+     * Забирает незавершённые задачи с истёкшей арендой: их реплика упала или перезапущена.
+     * Задачи, которые живая реплика продолжает вести, не трогаются.
+     */
+    public List<GenerationJob> claimExpiredJobs() {
+        Instant now = Instant.now();
+        Instant leaseUntil = now.plus(leaseTtl);
+        List<GenerationJob> claimed = new ArrayList<>();
+        for (GenerationJob candidate : generationJobRepository.findAllByStateInAndLeaseUntilBefore(UNFINISHED, now)) {
+            if (generationJobRepository.claim(candidate.getId(), instanceId, leaseUntil, now, UNFINISHED) == 1) {
+                // Перечитываем: пока аренда была свободна, состояние могло измениться
+                generationJobRepository.findById(candidate.getId()).ifPresent(claimed::add);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Продлевает аренду задач, которые ведёт эта реплика.
+     */
+    @Scheduled(fixedDelayString = "${telegram.bot.jobs.lease-renew-interval-ms:30000}")
+    public void renewLeases() {
+        generationJobRepository.renewLeases(instanceId, Instant.now().plus(leaseTtl), UNFINISHED);
+    }
+
+    /**
+     * @return задача, если переход применён
+     */
+    private Optional<GenerationJob> transition(Optional<GenerationJob> found, String key, GenerationJobState state,
+                                               Consumer<GenerationJob> update) {
+        if (found.isEmpty()) {
+            log.warn("Generation job {} not found, state {} is not persisted", key, state);
+            return Optional.empty();
+        }
+        GenerationJob job = found.get();
+        if (!job.getState().canMoveTo(state)) {
+            // Задачу уже продвинули (например, реплика, забравшая её после истечения аренды)
+            log.debug("Generation job {} is {}, ignoring transition to {}", key, job.getState(), state);
+            return Optional.empty();
+        }
+        job.setState(state);
+        update.accept(job);
+        return Optional.of(generationJobRepository.save(job));
+    }
+}
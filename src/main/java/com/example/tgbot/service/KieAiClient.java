@@ -0,0 +1,130 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.web.CreateTaskResponse;
+import com.example.tgbot.web.RecordInfoResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * HTTP-клиент Kie.ai: создание задач и запрос их статуса.
+ */
+@Component
+@Slf4j
+public class KieAiClient {
+
+    private final WebClient webClient;
+    private final String callbackUrl;
+    private final MeterRegistry meterRegistry;
+
+    public KieAiClient(MeterRegistry meterRegistry,
+                       @Value("${kieai.api-key}") String apiKey,
+                       @Value("${kieai.base-url:https://api.kie.ai/api/v1}") String baseUrl,
+                       @Value("${kieai.callback.base-url:}") String callbackBaseUrl,
+                       @Value("${kieai.callback.token:}") String callbackToken) {
+        this.meterRegistry = meterRegistry;
+        this.callbackUrl = buildCallbackUrl(callbackBaseUrl, callbackToken);
+
+        HttpClient httpClient = HttpClient.create()
+                .responseTimeout(Duration.ofSeconds(60))
+                .option(io.netty.channel.ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+
+        this.webClient = WebClient.builder()
+                .baseUrl(baseUrl)
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + apiKey)
+                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .build();
+    }
+
+    /**
+     * Kie.ai сам сообщает о завершении задачи, если при создании передан callBackUrl.
+     */
+    public boolean isCallbackEnabled() {
+        return callbackUrl != null;
+    }
+
+    /**
+     * Создаёт задачу и возвращает её taskId.
+     */
+    public Mono<String> createTask(Map<String, Object> payload) {
+        Map<String, Object> body = payload;
+        if (callbackUrl != null) {
+            body = new HashMap<>(payload);
+            body.put("callBackUrl", callbackUrl);
+        }
+        Mono<String> request = webClient.post()
+                .uri("/jobs/createTask")
+                .bodyValue(body)
+                .retrieve()
+                .onStatus(s -> !s.is2xxSuccessful(), resp ->
+                        resp.bodyToMono(String.class).defaultIfEmpty("")
+                                .map(errorBody -> new IllegalStateException("Kie.ai createTask HTTP " + resp.statusCode() + " body: " + errorBody))
+                )
+                .bodyToMono(CreateTaskResponse.class)
+                .doOnNext(r -> log.debug("createTask resp: {}", r))
+                .flatMap(r -> {
+                    String taskId = r.getData() != null ? r.getData().getTaskId() : null;
+                    if (taskId == null || taskId.isBlank()) {
+                        return Mono.error(new IllegalStateException("Kie.ai did not return taskId; resp=" + r));
+                    }
+                    return Mono.just(taskId);
+                });
+        return timed("kieai.create.task", (String) payload.get("model"), request);
+    }
+
+    /**
+     * Один запрос recordInfo.
+     *
+     * @param model модель задачи, только для метрик
+     */
+    public Mono<RecordInfoResponse> fetchTaskStatus(String taskId, String model) {
+        Mono<RecordInfoResponse> request = webClient.get()
+                .uri(uriBuilder -> uriBuilder.path("/jobs/recordInfo").queryParam("taskId", taskId).build())
+                .retrieve()
+                .bodyToMono(RecordInfoResponse.class)
+                .onErrorResume(e -> Mono.error(new IllegalStateException("Error contacting Kie.ai: " + e.getMessage(), e)));
+        return timed("kieai.record.info", model, request);
+    }
+
+    private <T> Mono<T> timed(String name, String model, Mono<T> request) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return request.doOnEach(signal -> {
+                if (signal.isOnNext() || signal.isOnError()) {
+                    sample.stop(Timer.builder(name)
+                            .tag("flow", VideoGenerationService.flowOf(model))
+                            .tag("outcome", signal.isOnError() ? "failure" : "success")
+                            .register(meterRegistry));
+                }
+            });
+        });
+    }
+
+    private static String buildCallbackUrl(String baseUrl, String token) {
+        if (baseUrl == null || baseUrl.isBlank()) {
+            return null;
+        }
+        if (token == null || token.isBlank()) {
+            throw new IllegalStateException("kieai.callback.token must be set when kieai.callback.base-url is configured");
+        }
+        String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        return UriComponentsBuilder.fromHttpUrl(base + "/kieai/callback")
+                .queryParam("token", token)
+                .toUriString();
+    }
+}
@@ -0,0 +1,336 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.repository.GenerationJobRepository;
+import com.example.tgbot.web.RecordInfoResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Единый опросчик статусов задач Kie.ai.
+ * Вместо отдельной цепочки Mono.delay на каждую генерацию все ожидающие taskId
+ * лежат в одном реестре, а один таймер раз в тик отправляет запросы recordInfo
+ * только по тем задачам, у которых подошло время. Время следующего опроса
+ * смещается случайным джиттером, чтобы запросы не собирались в пачки,
+ * а число одновременных запросов ограничено.
+ * <p>
+ * Расписание адаптивное: первые опросы ставятся на перцентили фактического
+ * времени генерации модели из {@link CompletionLatencyHistogram}, дальше —
+ * экспоненциальный backoff до жёсткого дедлайна.
+ * <p>
+ * Если включены колбэки Kie.ai ({@link #resolve}), опрос работает только как
+ * редкая страховочная проверка с интервалом kieai.callback.sweep-interval.
+ * <p>
+ * Колбэк может прийти на реплику, которая задачу не ждёт. Тогда он сохраняется в
+ * generation_jobs.callback_payload, а реплика-владелец забирает его оттуда
+ * ({@link #pickUpForwardedCallbacks}) — без ожидания страховочного опроса.
+ */
+@Component
+@Slf4j
+public class KieTaskPoller {
+
+    /** Перцентили, на которые ставятся первые опросы, пока задача не просрочена. */
+    private static final double[] PREDICTED_PERCENTILES = {0.5, 0.75, 0.9, 0.99};
+
+    private final KieAiClient kieAiClient;
+    private final CompletionLatencyHistogram latencyHistogram;
+    private final GenerationJobRepository generationJobRepository;
+    private final ObjectMapper objectMapper;
+    private final Map<String, PendingTask> pending = new ConcurrentHashMap<>();
+    private final Counter pollCounter;
+    private final Counter pollErrorCounter;
+    private final Counter callbackCounter;
+    private final Counter forwardedCounter;
+    private final Counter timeoutCounter;
+
+    private final long minDelayMillis;
+    private final long backoffBaseMillis;
+    private final long backoffMaxMillis;
+    private final long deadlineMillis;
+    private final long minSamples;
+    private final long jitterMillis;
+    private final int maxConcurrentPolls;
+    private final int maxConsecutiveErrors;
+    private final long sweepIntervalMillis;
+
+    public KieTaskPoller(KieAiClient kieAiClient,
+                         CompletionLatencyHistogram latencyHistogram,
+                         GenerationJobRepository generationJobRepository,
+                         ObjectMapper objectMapper,
+                         MeterRegistry meterRegistry,
+                         @Value("${kieai.poll.min-delay:15s}") Duration minDelay,
+                         @Value("${kieai.poll.backoff-base:15s}") Duration backoffBase,
+                         @Value("${kieai.poll.backoff-max:2m}") Duration backoffMax,
+                         @Value("${kieai.poll.deadline:30m}") Duration deadline,
+                         @Value("${kieai.poll.min-samples:20}") long minSamples,
+                         @Value("${kieai.poll.jitter:5s}") Duration jitter,
+                         @Value("${kieai.poll.max-concurrent:16}") int maxConcurrentPolls,
+                         @Value("${kieai.poll.max-consecutive-errors:3}") int maxConsecutiveErrors,
+                         @Value("${kieai.callback.sweep-interval:5m}") Duration sweepInterval) {
+        this.kieAiClient = kieAiClient;
+        this.latencyHistogram = latencyHistogram;
+        this.generationJobRepository = generationJobRepository;
+        this.objectMapper = objectMapper;
+        this.sweepIntervalMillis = kieAiClient.isCallbackEnabled() ? sweepInterval.toMillis() : 0;
+        this.minDelayMillis = minDelay.toMillis();
+        this.backoffBaseMillis = backoffBase.toMillis();
+        this.backoffMaxMillis = backoffMax.toMillis();
+        this.deadlineMillis = deadline.toMillis();
+        this.minSamples = minSamples;
+        this.jitterMillis = jitter.toMillis();
+        this.maxConcurrentPolls = maxConcurrentPolls;
+        this.maxConsecutiveErrors = maxConsecutiveErrors;
+        this.pollCounter = meterRegistry.counter("kieai.poller.polls");
+        this.pollErrorCounter = meterRegistry.counter("kieai.poller.poll.errors");
+        this.callbackCounter = meterRegistry.counter("kieai.poller.callbacks");
+        this.forwardedCounter = meterRegistry.counter("kieai.poller.callbacks.forwarded");
+        this.timeoutCounter = meterRegistry.counter("kieai.poller.timeouts");
+        meterRegistry.gauge("kieai.poller.pending", pending, Map::size);
+    }
+
+    /**
+     * Регистрирует задачу в реестре и возвращает Mono, который завершится
+     * ответом recordInfo с состоянием success или ошибкой при fail.
+     *
+     * @param startedAt момент создания задачи (для поднятых после рестарта — из generation_jobs)
+     */
+    public Mono<RecordInfoResponse> register(String taskId, String model, Instant startedAt) {
+        return Mono.defer(() -> pending
+                .computeIfAbsent(taskId, id -> {
+                    PendingTask task = new PendingTask(id, model, startedAt.toEpochMilli());
+                    // Задача, поднятая после простоя дольше дедлайна, опрашивается сразу:
+                    // возможно, Kie.ai давно её закончил
+                    task.nextPollAt = System.currentTimeMillis() - task.startedAt > deadlineMillis
+                            ? System.currentTimeMillis() : nextPollAt(task);
+                    return task;
+                })
+                .sink.asMono());
+    }
+
+    /**
+     * Завершает ожидающую задачу по данным из колбэка Kie.ai. Если задачу ждёт другая
+     * реплика, конечный результат сохраняется в generation_jobs для неё. Блокирующий вызов.
+     *
+     * @return false, если колбэк без taskId или задача ещё не в конечном состоянии
+     */
+    public boolean resolve(RecordInfoResponse r) {
+        RecordInfoResponse.DataBlock d = r.getData();
+        if (d == null || d.getTaskId() == null) {
+            return false;
+        }
+        PendingTask task = pending.get(d.getTaskId());
+        if (task != null) {
+            callbackCounter.increment();
+            return complete(task, r);
+        }
+        if (!isFinished(d)) {
+            return false;
+        }
+        try {
+            int updated = generationJobRepository.storeCallbackPayload(d.getTaskId(), objectMapper.writeValueAsString(r));
+            if (updated > 0) {
+                forwardedCounter.increment();
+                log.debug("Stored Kie.ai callback for task {} owned by another replica", d.getTaskId());
+            }
+            return updated > 0;
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize Kie.ai callback for task " + d.getTaskId(), e);
+        }
+    }
+
+    /**
+     * Забирает колбэки, которые другие реплики сохранили для задач этого узла.
+     */
+    @Scheduled(fixedDelayString = "${kieai.callback.forwarded-check-ms:2000}")
+    public void pickUpForwardedCallbacks() {
+        if (sweepIntervalMillis == 0 || pending.isEmpty()) {
+            return;
+        }
+        List<GenerationJob> jobs;
+        try {
+            jobs = generationJobRepository.findAllByTaskIdInAndCallbackPayloadIsNotNull(List.copyOf(pending.keySet()));
+        } catch (Exception e) {
+            log.warn("Failed to check forwarded Kie.ai callbacks: {}", e.getMessage());
+            return;
+        }
+        for (GenerationJob job : jobs) {
+            PendingTask task = pending.get(job.getTaskId());
+            if (task == null) {
+                continue;
+            }
+            try {
+                callbackCounter.increment();
+                complete(task, objectMapper.readValue(job.getCallbackPayload(), RecordInfoResponse.class));
+            } catch (JsonProcessingException e) {
+                log.warn("Ignoring unreadable forwarded callback for task {}: {}", job.getTaskId(), e.getMessage());
+            }
+        }
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    @Scheduled(fixedDelayString = "${kieai.poll.tick-ms:1000}")
+    public void tick() {
+        long now = System.currentTimeMillis();
+        List<PendingTask> due = new ArrayList<>();
+        for (PendingTask task : pending.values()) {
+            if (task.inFlight || task.nextPollAt > now) {
+                continue;
+            }
+            // Дедлайн проверяется только после хотя бы одного ответа recordInfo
+            if (task.polls > 0 && now - task.startedAt > deadlineMillis) {
+                timeoutCounter.increment();
+                pending.remove(task.taskId);
+                task.sink.tryEmitError(new IllegalStateException(
+                        "Kie.ai task " + task.taskId + " did not finish in " + Duration.ofMillis(deadlineMillis)));
+                continue;
+            }
+            task.inFlight = true;
+            due.add(task);
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        log.trace("Polling {} of {} pending Kie.ai tasks", due.size(), pending.size());
+        Flux.fromIterable(due)
+                .flatMap(this::poll, maxConcurrentPolls)
+                .subscribe();
+    }
+
+    private Mono<Void> poll(PendingTask task) {
+        pollCounter.increment();
+        return kieAiClient.fetchTaskStatus(task.taskId, task.model)
+                .doOnNext(r -> handleResponse(task, r))
+                .doOnError(e -> handleError(task, e))
+                .onErrorResume(e -> Mono.empty())
+                .doFinally(s -> task.inFlight = false)
+                .then();
+    }
+
+    private void handleResponse(PendingTask task, RecordInfoResponse r) {
+        task.polls++;
+        task.consecutiveErrors = 0;
+        log.trace("-> Poll #{} for response, taskId={}, response={}", task.polls, task.taskId, r);
+        if (!complete(task, r)) {
+            task.nextPollAt = nextPollAt(task);
+        }
+    }
+
+    private static boolean isFinished(RecordInfoResponse.DataBlock d) {
+        return d.getState() != null
+                && (d.getState().equalsIgnoreCase("success") || d.getState().equalsIgnoreCase("fail"));
+    }
+
+    /**
+     * @return true, если задача в конечном состоянии и ожидающий получил результат
+     */
+    private boolean complete(PendingTask task, RecordInfoResponse r) {
+        RecordInfoResponse.DataBlock d = r.getData();
+        String state = (d != null && d.getState() != null) ? d.getState().toLowerCase() : "";
+        switch (state) {
+            case "success":
+                if (pending.remove(task.taskId) != null) {
+                    latencyHistogram.record(task.model, completionTime(task, d));
+                }
+                task.sink.tryEmitValue(r);
+                return true;
+            case "fail":
+                pending.remove(task.taskId);
+                task.sink.tryEmitError(new IllegalStateException(d.getFailMsg()));
+                return true;
+            case "waiting":
+            case "queuing":
+            case "generating":
+            default:
+                return false;
+        }
+    }
+
+    private void handleError(PendingTask task, Throwable e) {
+        pollErrorCounter.increment();
+        task.consecutiveErrors++;
+        if (task.consecutiveErrors >= maxConsecutiveErrors) {
+            pending.remove(task.taskId);
+            task.sink.tryEmitError(e);
+            return;
+        }
+        log.warn("Poll for taskId={} failed ({}/{}): {}", task.taskId, task.consecutiveErrors, maxConsecutiveErrors, e.getMessage());
+        task.nextPollAt = nextPollAt(task);
+    }
+
+    /**
+     * Следующий опрос: ближайший ещё не прошедший перцентиль времени генерации модели,
+     * а когда задача дольше всех прогнозов — экспоненциальный backoff.
+     */
+    private long nextPollAt(PendingTask task) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - task.startedAt;
+        long delay = -1;
+        while (task.predictionStep < PREDICTED_PERCENTILES.length) {
+            Duration predicted = latencyHistogram.percentile(task.model, PREDICTED_PERCENTILES[task.predictionStep++], minSamples);
+            if (predicted == null) {
+                // Замеров по модели пока мало — сразу переходим к backoff
+                task.predictionStep = PREDICTED_PERCENTILES.length;
+                break;
+            }
+            if (predicted.toMillis() - elapsed >= minDelayMillis) {
+                delay = predicted.toMillis() - elapsed;
+                break;
+            }
+        }
+        if (delay < 0) {
+            delay = Math.min(backoffMaxMillis, backoffBaseMillis << Math.min(task.backoffStep++, 16));
+        }
+        delay = Math.max(delay, sweepIntervalMillis);
+        long jitter = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0;
+        return now + delay + jitter;
+    }
+
+    private static Duration completionTime(PendingTask task, RecordInfoResponse.DataBlock d) {
+        // Предпочитаем время самого Kie.ai: оно не зависит от частоты наших опросов
+        if (d.getCreateTime() != null && d.getCompleteTime() != null && d.getCompleteTime() > d.getCreateTime()) {
+            return Duration.ofMillis(d.getCompleteTime() - d.getCreateTime());
+        }
+        return Duration.ofMillis(System.currentTimeMillis() - task.startedAt);
+    }
+
+    private static final class PendingTask {
+        private final String taskId;
+        private final String model;
+        private final long startedAt;
+        private final Sinks.One<RecordInfoResponse> sink = Sinks.one();
+        private volatile long nextPollAt;
+        private volatile boolean inFlight;
+        private volatile int polls;
+        private volatile int consecutiveErrors;
+        // Меняются в колбэках HTTP-клиента (потоки Netty), читаются при следующем опросе
+        private volatile int predictionStep;
+        private volatile int backoffStep;
+
+        PendingTask(String taskId, String model, long startedAt) {
+            this.taskId = taskId;
+            this.model = model;
+            this.startedAt = startedAt;
+        }
+    }
+}
@@ -1,69 +1,286 @@
 package com.example.tgbot.service;
 
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 
+/**
+ * Ограничение частоты запросов пользователя по GCRA (generic cell rate algorithm):
+ * capacity запросов подряд, дальше — один запрос на каждые refillPeriod / capacity,
+ * без ступенчатого пополнения целыми периодами.
+ * <p>
+ * Всё состояние пользователя — одно число TAT (theoretical arrival time). Оно лежит
+ * в собственной long→long хэш-таблице с открытой адресацией, разбитой на сегменты:
+ * без объекта на пользователя и без блокировок, TAT обновляется через CAS.
+ * Записи, у которых TAT уже в прошлом (корзина полная), ничем не отличаются
+ * от отсутствующих и периодически вычищаются.
+ */
 @Component
 public class RateLimiterService {
 
-    private final int capacity;
+    private static final int SEGMENT_BITS = 6;
+    private static final int MIN_SEGMENT_SLOTS = 64;
 
-    private final Duration refillPeriod;
-
-    private final Map<Long, UserRateLimiter> limiters = new ConcurrentHashMap<>();
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final long originNanos = System.nanoTime() - 1;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
 
     public RateLimiterService() {
         this(5, Duration.ofMinutes(1));
     }
 
     public RateLimiterService(int capacity, Duration refillPeriod) {
-        this.capacity = capacity;
-        this.refillPeriod = refillPeriod;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.emissionIntervalNanos = refillPeriod.toNanos() / capacity;
+        this.burstToleranceNanos = emissionIntervalNanos * (capacity - 1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
     }
 
     public boolean tryConsume(long userId) {
-        UserRateLimiter limiter = limiters.computeIfAbsent(userId,
-                id -> new UserRateLimiter(capacity, refillPeriod));
-        return limiter.tryConsume();
+        if (userId == Table.EMPTY_KEY || userId == Table.MOVED_KEY) {
+            throw new IllegalArgumentException("Unsupported user id " + userId);
+        }
+        long now = System.nanoTime() - originNanos;
+        long hash = mix(userId);
+        Segment segment = segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+        while (true) {
+            Table table = segment.table;
+            int slot = table.findOrClaim(userId, (int) hash);
+            if (slot == Table.FULL) {
+                segment.rebuild(now);
+                continue;
+            }
+            if (slot == Table.FROZEN) {
+                segment.awaitRebuild(table);
+                continue;
+            }
+            while (true) {
+                long tat = table.value(slot);
+                if (tat == Table.MOVED_VALUE) {
+                    break;
+                }
+                long base = Math.max(tat, now);
+                if (base - now > burstToleranceNanos) {
+                    // Отказ ничего не пишет: лишние запросы не создают конкуренции за слот
+                    return false;
+                }
+                if (table.casValue(slot, tat, base + emissionIntervalNanos)) {
+                    return true;
+                }
+            }
+            segment.awaitRebuild(table);
+        }
+    }
+
+    /**
+     * Число пользователей, для которых сейчас хранится состояние (включая ещё не вычищенные простаивающие).
+     */
+    public int trackedUsers() {
+        int total = 0;
+        for (Segment segment : segments) {
+            total += segment.table.claimed.get();
+        }
+        return total;
+    }
+
+    /**
+     * Убирает пользователей с полной корзиной: для них запись ничего не ограничивает.
+     */
+    @Scheduled(fixedDelayString = "${telegram.bot.rate-limit.sweep-interval-ms:60000}")
+    public void sweepIdle() {
+        long now = System.nanoTime() - originNanos;
+        for (Segment segment : segments) {
+            if (segment.table.claimed.get() > 0) {
+                segment.rebuild(now);
+            }
+        }
+    }
+
+    private static long mix(long key) {
+        // Финальный шаг MurmurHash3: равномерно размазывает последовательные id
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Сегмент владеет текущей таблицей и перестраивает её при заполнении и при чистке.
+     * Перестройка замораживает каждый слот старой таблицы (MOVED), переносит живые записи
+     * в новую и публикует её; потоки, наткнувшиеся на MOVED, дожидаются новой таблицы.
+     */
+    private static final class Segment {
+
+        private final AtomicBoolean rebuilding = new AtomicBoolean();
+        private volatile Table table = new Table(MIN_SEGMENT_SLOTS);
+
+        void rebuild(long now) {
+            if (!rebuilding.compareAndSet(false, true)) {
+                // Перестройку уже ведёт другой поток; вызывающий перечитает таблицу
+                Thread.onSpinWait();
+                return;
+            }
+            try {
+                Table old = table;
+                int slots = old.slots();
+                long[] liveKeys = new long[slots];
+                long[] liveValues = new long[slots];
+                int live = 0;
+                for (int i = 0; i < slots; i++) {
+                    long key = old.freezeKey(i);
+                    if (key == Table.EMPTY_KEY) {
+                        continue;
+                    }
+                    long tat = old.freezeValue(i);
+                    if (tat > now) {
+                        liveKeys[live] = key;
+                        liveValues[live] = tat;
+                        live++;
+                    }
+                }
+                // После перестройки таблица заполнена не больше чем наполовину
+                int newSlots = Math.max(MIN_SEGMENT_SLOTS, Integer.highestOneBit(Math.max(1, live) * 4 - 1));
+                Table fresh = new Table(newSlots);
+                for (int i = 0; i < live; i++) {
+                    fresh.put(liveKeys[i], (int) mix(liveKeys[i]), liveValues[i]);
+                }
+                table = fresh;
+            } finally {
+                rebuilding.set(false);
+            }
+        }
+
+        void awaitRebuild(Table frozen) {
+            while (table == frozen) {
+                Thread.onSpinWait();
+            }
+        }
     }
 
-    private static final class UserRateLimiter {
-        private final int capacity;
-        private final Duration refillPeriod;
-        private int tokens;
-        private Instant lastRefill;
-
-        UserRateLimiter(int capacity, Duration refillPeriod) {
-            this.capacity = capacity;
-            this.refillPeriod = refillPeriod;
-            this.tokens = capacity;
-            this.lastRefill = Instant.now();
-        }
-
-        synchronized boolean tryConsume() {
-            Instant now = Instant.now();
-            long millisSinceRefill = Duration.between(lastRefill, now).toMillis();
-            long refillIntervalMillis = refillPeriod.toMillis();
-            if (millisSinceRefill > 0) {
-                long periods = millisSinceRefill / refillIntervalMillis;
-                if (periods > 0) {
-                    // restore tokens proportionally to the number of periods elapsed
-                    int newTokens = (int) (periods * capacity);
-                    tokens = Math.min(capacity, tokens + newTokens);
-                    // update last refill time
-                    lastRefill = lastRefill.plus(refillPeriod.multipliedBy(periods));
+    /**
+     * Хэш-таблица с линейным пробированием: пары (ключ, TAT) подряд в одном AtomicLongArray.
+     * Слоты только занимаются, но не освобождаются — освобождение происходит при перестройке.
+     * <p>
+     * Ключ и TAT не упакованы в один long: id пользователя Telegram занимает до 52 бит,
+     * и на TAT в наносекундах не хватило бы остатка. Атомарность пары и не нужна — ключ пишется
+     * один раз при занятии слота, а CAS идёт только по TAT. Оба long лежат рядом, обычно
+     * в одной кэш-линии, поэтому отдельный слот под ключ стоит 8 байт, но не лишний промах кэша.
+     */
+    private static final class Table {
+
+        static final long EMPTY_KEY = 0L;
+        static final long MOVED_KEY = Long.MIN_VALUE;
+        static final long MOVED_VALUE = -1L;
+        static final int FULL = -1;
+        static final int FROZEN = -2;
+
+        private final AtomicLongArray entries;
+        private final int mask;
+        private final int maxClaimed;
+        private final AtomicInteger claimed = new AtomicInteger();
+
+        Table(int slots) {
+            this.entries = new AtomicLongArray(slots * 2);
+            this.mask = slots - 1;
+            this.maxClaimed = slots - (slots >>> 2);
+        }
+
+        int slots() {
+            return mask + 1;
+        }
+
+        /**
+         * @return индекс слота ключа, {@link #FULL}, если свободных слотов не осталось,
+         * или {@link #FROZEN}, если таблица перестраивается
+         */
+        int findOrClaim(long key, int hash) {
+            for (int probe = 0, i = hash & mask; probe <= mask; probe++, i = (i + 1) & mask) {
+                long current = entries.get(i * 2);
+                if (current == key) {
+                    return i;
+                }
+                if (current == MOVED_KEY) {
+                    return FROZEN;
+                }
+                if (current == EMPTY_KEY) {
+                    if (claimed.get() >= maxClaimed) {
+                        return FULL;
+                    }
+                    if (entries.compareAndSet(i * 2, EMPTY_KEY, key)) {
+                        claimed.incrementAndGet();
+                        return i;
+                    }
+                    // Слот заняли параллельно — возможно, тем же ключом
+                    current = entries.get(i * 2);
+                    if (current == key) {
+                        return i;
+                    }
+                    if (current == MOVED_KEY) {
+                        return FROZEN;
+                    }
+                }
+            }
+            return FULL;
+        }
+
+        long value(int slot) {
+            return entries.get(slot * 2 + 1);
+        }
+
+        boolean casValue(int slot, long expected, long value) {
+            return entries.compareAndSet(slot * 2 + 1, expected, value);
+        }
+
+        /**
+         * Запрещает занимать пустой слот; возвращает ключ, который в нём был.
+         */
+        long freezeKey(int slot) {
+            while (true) {
+                long key = entries.get(slot * 2);
+                if (key != EMPTY_KEY) {
+                    return key;
+                }
+                if (entries.compareAndSet(slot * 2, EMPTY_KEY, MOVED_KEY)) {
+                    return EMPTY_KEY;
                 }
             }
-            if (tokens > 0) {
-                tokens--;
-                return true;
+        }
+
+        /**
+         * Запрещает дальнейшие CAS по значению слота; возвращает последнее значение.
+         */
+        long freezeValue(int slot) {
+            while (true) {
+                long value = entries.get(slot * 2 + 1);
+                if (entries.compareAndSet(slot * 2 + 1, value, MOVED_VALUE)) {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * Вставка в ещё не опубликованную таблицу, без конкуренции.
+         */
+        void put(long key, int hash, long value) {
+            int i = hash & mask;
+            while (entries.get(i * 2) != EMPTY_KEY) {
+                i = (i + 1) & mask;
             }
-            return false;
+            entries.set(i * 2, key);
+            entries.set(i * 2 + 1, value);
+            claimed.incrementAndGet();
         }
     }
-}
\ No newline at end of file
+}
@@ -1,50 +1,141 @@
 package com.example.tgbot.service;
 
+import com.example.tgbot.model.BalanceEventType;
 import com.example.tgbot.model.User;
 import com.example.tgbot.repository.UserRepository;
-import lombok.RequiredArgsConstructor;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.util.Optional;
+import java.time.Duration;
 
 
+/**
+ * Пользователи с read-through кэшем по telegramId перед {@link UserRepository}.
+ * Наружу всегда отдаётся копия, чтобы изменения вызывающего не попадали в кэш
+ * в обход базы. Любое изменение баланса сбрасывает запись после завершения транзакции.
+ */
 @Service
-@RequiredArgsConstructor
 public class UserService {
 
     private final UserRepository userRepository;
+    private final BalanceJournal balanceJournal;
+    private final Cache<Long, User> users;
+    private final Timer loadTimer;
+    private final Timer debitTimer;
+    private final Timer creditTimer;
+
+    public UserService(UserRepository userRepository,
+                       BalanceJournal balanceJournal,
+                       MeterRegistry meterRegistry,
+                       @Value("${telegram.bot.users.cache-ttl:30s}") Duration cacheTtl,
+                       @Value("${telegram.bot.users.cache-max-size:100000}") long cacheMaxSize) {
+        this.userRepository = userRepository;
+        this.balanceJournal = balanceJournal;
+        // TTL ограничивает расхождение с изменениями, сделанными другими репликами
+        this.users = Caffeine.newBuilder()
+                .expireAfterWrite(cacheTtl)
+                .maximumSize(cacheMaxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, users, "bot.users");
+        // Время запросов к БД; попадания в кэш сюда не входят
+        this.loadTimer = meterRegistry.timer("bot.users.db", "operation", "load");
+        this.debitTimer = meterRegistry.timer("bot.users.db", "operation", "debit");
+        this.creditTimer = meterRegistry.timer("bot.users.db", "operation", "credit");
+    }
 
 
-    @Transactional
     public User findOrCreateUser(Long telegramId) {
-        Optional<User> existing = userRepository.findByTelegramId(telegramId);
-        if (existing.isPresent()) {
-            return existing.get();
-        }
-        User newUser = User.builder()
-                .telegramId(telegramId)
-                .balance(0)
-                .build();
-        return userRepository.save(newUser);
+        return users.get(telegramId, this::loadOrCreate).toBuilder().build();
+    }
+
+    /**
+     * Есть ли пользователь в кэше: {@link #findOrCreateUser} тогда не обратится к БД.
+     */
+    public boolean isCached(Long telegramId) {
+        return users.getIfPresent(telegramId) != null;
     }
 
+    private User loadOrCreate(Long telegramId) {
+        return loadTimer.record(() -> userRepository.findByTelegramId(telegramId)
+                .orElseGet(() -> userRepository.save(User.builder()
+                        .telegramId(telegramId)
+                        .balance(0)
+                        .build())));
+    }
+
+    /**
+     * Начисляет генерации одним UPDATE, без чтения и записи всей сущности.
+     * Переданная копия пользователя получает новый баланс.
+     */
+    @Transactional
+    public User addBalance(User user, int amount, BalanceEventType reason) {
+        user.setBalance(addBalance(user.getTelegramId(), amount, reason, null, null));
+        return user;
+    }
+
+    /**
+     * Возвращает генерацию, списанную под неудавшуюся задачу. Вызывается из
+     * {@link GenerationJobService#markFailed} вместе с переходом задачи в FAILED; второй возврат
+     * по тому же correlation_id отвергает уникальный индекс balance_events.
+     *
+     * @param taskId        задача Kie.ai, если она успела создаться
+     * @param correlationId id, с которым генерация была списана
+     */
     @Transactional
-    public User addBalance(User user, int amount) {
+    public int refundGeneration(Long telegramId, String taskId, String correlationId) {
+        return addBalance(telegramId, 1, BalanceEventType.REFUND, taskId, correlationId);
+    }
+
+    private int addBalance(Long telegramId, int amount, BalanceEventType reason, String taskId, String correlationId) {
         if (amount <= 0) {
             throw new IllegalArgumentException("Amount must be positive");
         }
-        user.setBalance(user.getBalance() + amount);
-        return userRepository.save(user);
+        evictAfterCompletion(telegramId);
+        int balance = creditTimer.record(() -> userRepository.credit(telegramId, amount))
+                .orElseThrow(() -> new IllegalStateException("User " + telegramId + " not found"));
+        balanceJournal.record(telegramId, reason, amount, balance, taskId, correlationId);
+        return balance;
     }
 
+    /**
+     * Списывает одну генерацию условным UPDATE ... WHERE balance > 0:
+     * параллельные списания не уводят баланс в минус и не затирают друг друга.
+     *
+     * @param correlationId id списания: с ним же регистрируется задача и делается возврат
+     */
     @Transactional
-    public User consumeOneGeneration(User user) {
-        int current = user.getBalance();
-        if (current <= 0) {
-            throw new IllegalStateException("Insufficient balance");
+    public User consumeOneGeneration(User user, String correlationId) {
+        evictAfterCompletion(user.getTelegramId());
+        int balance = debitTimer.record(() -> userRepository.debitOne(user.getTelegramId()))
+                .orElseThrow(() -> new IllegalStateException("Insufficient balance"));
+        balanceJournal.record(user.getTelegramId(), BalanceEventType.DEBIT, -1, balance, null, correlationId);
+        user.setBalance(balance);
+        return user;
+    }
+
+    /**
+     * Сбрасывает запись после коммита или отката, чтобы параллельное чтение
+     * не успело закэшировать значение из ещё не закоммиченной транзакции.
+     */
+    private void evictAfterCompletion(Long telegramId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            users.invalidate(telegramId);
+            return;
         }
-        user.setBalance(current - 1);
-        return userRepository.save(user);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                users.invalidate(telegramId);
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.repository.GenerationJobRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Optional;
+
+
+/**
+ * file_id уже отправленных видео по чату и параметрам запроса (модель, формат, промпт).
+ * Повтор того же запроса в том же чате отправляется по file_id: без новой генерации и без загрузки файла.
+ * Видео, сгенерированное для одного пользователя, другому не выдаётся.
+ * Источник истины — колонка generation_jobs.telegram_file_id, перед ней read-through кэш.
+ */
+@Service
+public class VideoFileIdCache {
+
+    private final GenerationJobRepository generationJobRepository;
+    private final Cache<Key, String> fileIds;
+
+    public VideoFileIdCache(GenerationJobRepository generationJobRepository,
+                            MeterRegistry meterRegistry,
+                            @Value("${telegram.bot.delivery.file-id-cache-ttl:24h}") Duration cacheTtl,
+                            @Value("${telegram.bot.delivery.file-id-cache-max-size:10000}") long cacheMaxSize) {
+        this.generationJobRepository = generationJobRepository;
+        this.fileIds = Caffeine.newBuilder()
+                .expireAfterWrite(cacheTtl)
+                .maximumSize(cacheMaxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, fileIds, "bot.video.file-ids");
+    }
+
+    /**
+     * Ищет видео, ранее отправленное в этот чат для тех же параметров. Блокирующий вызов (возможен запрос в БД).
+     */
+    public Optional<String> find(Long chatId, String model, String format, String prompt) {
+        // Промахи не кэшируются: Caffeine не хранит null
+        return Optional.ofNullable(fileIds.get(new Key(chatId, model, format, prompt), key ->
+                generationJobRepository
+                        .findFirstByChatIdAndModelAndFormatAndPromptAndTelegramFileIdIsNotNullOrderByCompletedAtDesc(
+                                key.chatId(), key.model(), key.format(), key.prompt())
+                        .map(GenerationJob::getTelegramFileId)
+                        .orElse(null)));
+    }
+
+    /**
+     * Запоминает file_id, который Telegram вернул на отправку видео. Блокирующий вызов.
+     */
+    public void remember(Long chatId, GeneratedVideo video, String fileId) {
+        fileIds.put(new Key(chatId, video.model(), video.format(), video.prompt()), fileId);
+        generationJobRepository.updateTelegramFileId(video.taskId(), fileId);
+    }
+
+    /**
+     * Забывает file_id, который Telegram больше не принимает. Блокирующий вызов.
+     */
+    public void forget(Long chatId, String model, String format, String prompt, String fileId) {
+        fileIds.invalidate(new Key(chatId, model, format, prompt));
+        generationJobRepository.clearTelegramFileId(fileId);
+    }
+
+    private record Key(Long chatId, String model, String format, String prompt) {
+    }
+}
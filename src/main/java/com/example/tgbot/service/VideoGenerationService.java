@@ -1,179 +1,153 @@
 package com.example.tgbot.service;
 
-import com.example.tgbot.web.CreateTaskResponse;
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.GenerationJobState;
 import com.example.tgbot.web.RecordInfoResponse;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
+import reactor.core.scheduler.Schedulers;
 
-import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static java.util.regex.Pattern.compile;
+import java.util.function.IntConsumer;
 
 @Service
 @Slf4j
 public class VideoGenerationService {
 
-    private final WebClient webClient;
-    private final ObjectMapper objectMapper = new ObjectMapper();
-
-    public VideoGenerationService(@Value("${kieai.api-key}") String apiKey) {
-
-        HttpClient httpClient = HttpClient.create()
-                .responseTimeout(Duration.ofSeconds(60))
-                .option(io.netty.channel.ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+    public static final String TEXT_TO_VIDEO_MODEL = "sora-2-text-to-video";
+    public static final String IMAGE_TO_VIDEO_MODEL = "sora-2-image-to-video";
+
+    private final ObjectMapper objectMapper;
+    private final KieAiClient kieAiClient;
+    private final KieTaskPoller kieTaskPoller;
+    private final GenerationJobService generationJobService;
+    private final GenerationConcurrencyLimiter concurrencyLimiter;
+
+    public VideoGenerationService(ObjectMapper objectMapper,
+                                  KieAiClient kieAiClient,
+                                  KieTaskPoller kieTaskPoller,
+                                  GenerationJobService generationJobService,
+                                  GenerationConcurrencyLimiter concurrencyLimiter) {
+        this.objectMapper = objectMapper;
+        this.kieAiClient = kieAiClient;
+        this.kieTaskPoller = kieTaskPoller;
+        this.generationJobService = generationJobService;
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
 
-        this.webClient = WebClient.builder()
-                .baseUrl("https://api.kie.ai/api/v1")
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
-                .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + apiKey)
-                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .build();
+    /**
+     * Сценарий генерации для тега flow в метриках: text или image.
+     */
+    public static String flowOf(String model) {
+        if (TEXT_TO_VIDEO_MODEL.equals(model)) {
+            return "text";
+        }
+        if (IMAGE_TO_VIDEO_MODEL.equals(model)) {
+            return "image";
+        }
+        return "other";
     }
 
-    public Mono<String> generateVideoFromText(String format, String prompt) {
+    /**
+     * @param reservation задача в PENDING из {@link GenerationJobService#reserve}
+     * @param onQueued    вызывается с позицией в очереди, если генерация ждёт свободного места
+     */
+    public Mono<GeneratedVideo> generateVideoFromText(GenerationJob reservation, IntConsumer onQueued) {
         Map<String, Object> input = new HashMap<>();
-        input.put("prompt", prompt);
-        input.put("aspect_ratio", getAspectRatio(format));
+        input.put("prompt", reservation.getPrompt());
+        input.put("aspect_ratio", getAspectRatio(reservation.getFormat()));
 
         Map<String, Object> payload = new HashMap<>();
-        payload.put("model", "sora-2-text-to-video");
+        payload.put("model", TEXT_TO_VIDEO_MODEL);
         payload.put("input", input);
 
-        return getTaskResponse(payload);
+        return getTaskResponse(reservation, payload, onQueued);
     }
 
-    public Mono<String> generateVideoFromImage(String format, String prompt, String imageUrl) {
+    public Mono<GeneratedVideo> generateVideoFromImage(GenerationJob reservation, String imageUrl, IntConsumer onQueued) {
         Map<String, Object> input = new HashMap<>();
 
+        String prompt = reservation.getPrompt();
         if (prompt != null && !prompt.isBlank()) {
             input.put("prompt", prompt);
         }
         input.put("image_urls", new String[]{imageUrl});
-        input.put("aspect_ratio", getAspectRatio(format));
+        input.put("aspect_ratio", getAspectRatio(reservation.getFormat()));
 
         Map<String, Object> payload = new HashMap<>();
-        payload.put("model", "sora-2-image-to-video");
+        payload.put("model", IMAGE_TO_VIDEO_MODEL);
         payload.put("input", input);
 
-        return getTaskResponse(payload);
-    }
-
-    private Mono<String> getTaskResponse(Map<String, Object> payload) {
-        return webClient.post()
-                .uri("/jobs/createTask")
-                .bodyValue(payload)
-                .retrieve()
-                .onStatus(s -> !s.is2xxSuccessful(), resp ->
-                        resp.bodyToMono(String.class).defaultIfEmpty("")
-                                .map(body -> new IllegalStateException("Kie.ai createTask HTTP " + resp.statusCode() + " body: " + body))
-                )
-                .bodyToMono(CreateTaskResponse.class)
-                .doOnNext(r -> log.debug("createTask resp: {}", r))
-                .flatMap(r -> {
-                    String taskId = r.getData() != null ? r.getData().getTaskId() : null;
-                    if (taskId == null || taskId.isBlank()) {
-                        return Mono.error(new IllegalStateException("Kie.ai did not return taskId; resp=" + r));
-                    }
-                    return pollForCompletionV2(taskId);
-                });
+        return getTaskResponse(reservation, payload, onQueued);
     }
 
     /**
-     * Опрос Kie.ai о статусе задачи. Первый запрос — спустя 2 минуты,
-     * затем каждые 30 секунд до получения результата или ошибки.
+     * Продолжает задачу, созданную до рестарта приложения: опрашивает Kie.ai, если результата
+     * ещё нет, или сразу отдаёт сохранённую ссылку, если видео готово, но не было доставлено.
      */
-    private Mono<String> pollForCompletion(String taskId) {
-        return Mono.delay(Duration.ofMinutes(2))
-                .then(fetchTaskStatus(taskId))
-                .expand(resp -> {
-                    RecordInfoResponse.DataBlock d = resp.getData();
-                    String state = (d != null && d.getState() != null) ? d.getState().toLowerCase() : "";
-                    switch (state) {
-                        case "success":
-                            return Mono.empty(); // задача завершена
-                        case "failed":
-                            return Mono.error(new IllegalStateException("Kie.ai task failed with state=" + state));
-                        case "waiting":
-                        case "queuing":
-                        case "generating":
-                        default:
-                            // повторный опрос через 30 секунд
-                            return Mono.delay(Duration.ofSeconds(30)).then(fetchTaskStatus(taskId));
-                    }
-                })
-                .last()
-                .map(this::extractUrlFromRecordInfo);
+    public Mono<GeneratedVideo> resumeJob(GenerationJob job) {
+        if (job.getState() == GenerationJobState.PENDING) {
+            // Задача в Kie.ai не создавалась: генерацию остаётся только вернуть
+            return Mono.error(new IllegalStateException("Generation " + job.getCorrelationId()
+                    + " was interrupted before the Kie.ai task was created"));
+        }
+        if (job.getState() == GenerationJobState.SUCCEEDED && job.getResultUrl() != null) {
+            log.info("Resuming delivery for taskId={}, chatId={}", job.getTaskId(), job.getChatId());
+            return Mono.just(new GeneratedVideo(job.getTaskId(), job.getModel(), job.getFormat(), job.getPrompt(), job.getResultUrl()));
+        }
+        log.info("Resuming polling for taskId={}, chatId={}", job.getTaskId(), job.getChatId());
+        // Задача уже занимает место в Kie.ai, поэтому разрешение выдаётся без очереди
+        return Mono.using(() -> concurrencyLimiter.acquireRunning(job.getModel()),
+                permit -> trackCompletion(job.getTaskId(), job.getModel(), job.getFormat(), job.getPrompt(),
+                        awaitCompletion(job.getTaskId(), job.getModel(), job.getCreatedAt())),
+                GenerationConcurrencyLimiter.Permit::release);
     }
 
-    private Mono<String> pollForCompletionV2(String taskId) {
-        AtomicInteger pollExpandCounter = new AtomicInteger(1);
-        // Первичный запрос через 15 секунд
-        return Mono.delay(Duration.ofSeconds(15))
-                .then(fetchTaskStatus(taskId))
-                .flatMap(r -> {
-                    RecordInfoResponse.DataBlock d = r.getData();
-                    String state = (d != null && d.getState() != null) ? d.getState().toLowerCase() : "";
-                    log.trace("-> Poll #1 for response, taskId={}, response={}", taskId, r);
-                    switch (state) {
-                        case "success":
-                            return Mono.empty(); // задача завершена
-                        case "fail":
-                            return Mono.error(new IllegalStateException(d.getFailMsg()));
-                        case "waiting":
-                        case "queuing":
-                        case "generating":
-                        default:
-                            // Повторный запрос через 2 минуты
-                            return Mono.delay(Duration.ofMinutes(2))
-                                    .then(fetchTaskStatus(taskId));
-                    }
-                })
-                .expand(r -> {
-                    RecordInfoResponse.DataBlock d = r.getData();
-                    String state = (d != null && d.getState() != null) ? d.getState().toLowerCase() : "";
-                    log.trace("-> Poll #{} for response, taskId={}, response={}", pollExpandCounter.incrementAndGet(), taskId, r);
-                    switch (state) {
-                        case "success":
-                            return Mono.empty(); // задача завершена
-                        case "fail":
-                            return Mono.error(new IllegalStateException(d.getFailMsg()));
-                        case "waiting":
-                        case "queuing":
-                        case "generating":
-                        default:
-                            // повторный опрос через 30 секунд
-                            return Mono.delay(Duration.ofSeconds(30))
-                                    .then(fetchTaskStatus(taskId));
-                    }
-                })
-                .last()
-                .map(this::extractUrlFromRecordInfo);
+    private Mono<GeneratedVideo> getTaskResponse(GenerationJob reservation, Map<String, Object> payload,
+                                                 IntConsumer onQueued) {
+        String model = (String) payload.get("model");
+        String format = reservation.getFormat();
+        String prompt = reservation.getPrompt();
+        // Место держится от createTask до конечного состояния задачи
+        return concurrencyLimiter.acquire(model, onQueued)
+                .flatMap(permit -> kieAiClient.createTask(payload)
+                        .flatMap(taskId ->
+                                // Сохраняем taskId до начала опроса, чтобы пережить рестарт
+                                Mono.fromCallable(() -> generationJobService.start(reservation.getCorrelationId(), taskId))
+                                        .subscribeOn(Schedulers.boundedElastic())
+                                        .flatMap(started -> started
+                                                .map(job -> trackCompletion(taskId, model, format, prompt,
+                                                        awaitCompletion(taskId, model, job.getCreatedAt())))
+                                                .orElseGet(() -> Mono.error(new GenerationFailedException(taskId,
+                                                        new IllegalStateException("Generation " + reservation.getCorrelationId()
+                                                                + " was cancelled before task " + taskId + " started"))))))
+                        .doFinally(signal -> permit.release()));
+    }
 
+    private Mono<GeneratedVideo> trackCompletion(String taskId, String model, String format, String prompt,
+                                                 Mono<String> result) {
+        // FAILED и возврат генерации — на стороне вызывающего, по correlation_id
+        return result
+                .flatMap(url -> Mono.fromRunnable(() -> generationJobService.markSucceeded(taskId, url))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .thenReturn(new GeneratedVideo(taskId, model, format, prompt, url)))
+                .onErrorMap(e -> !(e instanceof GenerationFailedException), e -> new GenerationFailedException(taskId, e));
     }
 
-    private Mono<RecordInfoResponse> fetchTaskStatus(String taskId) {
-        return webClient.get()
-                .uri(uriBuilder -> uriBuilder.path("/jobs/recordInfo").queryParam("taskId", taskId).build())
-                .retrieve()
-                .bodyToMono(RecordInfoResponse.class)
-                .onErrorResume(e -> Mono.error(new IllegalStateException("Error contacting Kie.ai: " + e.getMessage(), e)));
+    /**
+     * Ожидание результата задачи через общий опросчик {@link KieTaskPoller}.
+     */
+    private Mono<String> awaitCompletion(String taskId, String model, Instant startedAt) {
+        return kieTaskPoller.register(taskId, model, startedAt)
+                .map(this::extractUrlFromRecordInfo);
     }
 
-    private String extractUrlFromRecordInfo(RecordInfoResponse resp) {
+    String extractUrlFromRecordInfo(RecordInfoResponse resp) {
         RecordInfoResponse.DataBlock d = resp.getData();
         if (d == null || d.getResultJson() == null || d.getResultJson().isBlank()) {
             throw new IllegalStateException("recordInfo has no data/resultJson: " + resp);
@@ -214,4 +188,4 @@ public class VideoGenerationService {
         }
         return aspectRatio;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChatUpdateDispatcherTest {
+
+    /** Исполнитель, который запускает задачи только по команде теста. */
+    private final Queue<Runnable> executor = new ArrayDeque<>();
+    private final ChatUpdateDispatcher dispatcher = new ChatUpdateDispatcher(executor::add, 1, new SimpleMeterRegistry());
+
+    @Test
+    void internalWorkRunsInChatOrderAndIsNeverShed() {
+        List<String> ran = new ArrayList<>();
+
+        assertThat(dispatcher.dispatch(1L, () -> ran.add("update"))).isTrue();
+        assertThat(dispatcher.dispatch(1L, () -> ran.add("shed"))).isFalse();
+        dispatcher.dispatchInternal(1L, () -> ran.add("delivery"));
+        runAll();
+
+        assertThat(ran).containsExactly("update", "delivery");
+    }
+
+    @Test
+    void internalWorkWaitsForInlineUpdate() {
+        List<String> ran = new ArrayList<>();
+
+        dispatcher.tryRunInline(1L, () -> {
+            dispatcher.dispatchInternal(1L, () -> ran.add("refund"));
+            ran.add("inline");
+        });
+        runAll();
+
+        assertThat(ran).containsExactly("inline", "refund");
+    }
+
+    private void runAll() {
+        Runnable next;
+        while ((next = executor.poll()) != null) {
+            next.run();
+        }
+    }
+}
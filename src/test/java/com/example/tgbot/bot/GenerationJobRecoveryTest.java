@@ -0,0 +1,28 @@
+package com.example.tgbot.bot;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.GenerationJobState;
+import com.example.tgbot.service.GenerationJobService;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+class GenerationJobRecoveryTest {
+
+    @Test
+    void resumesEveryClaimedJobEvenIfOneFails() {
+        GenerationJobService jobService = mock(GenerationJobService.class);
+        SoraVideoBot bot = mock(SoraVideoBot.class);
+        GenerationJob running = GenerationJob.builder().taskId("running").chatId(1L).state(GenerationJobState.RUNNING).build();
+        GenerationJob succeeded = GenerationJob.builder().taskId("succeeded").chatId(2L).state(GenerationJobState.SUCCEEDED).build();
+        when(jobService.claimExpiredJobs()).thenReturn(List.of(running, succeeded));
+        doThrow(new IllegalStateException("boom")).when(bot).resumeGeneration(running);
+
+        new GenerationJobRecovery(jobService, bot).resumeExpiredJobs();
+
+        verify(bot).resumeGeneration(running);
+        verify(bot).resumeGeneration(succeeded);
+    }
+}
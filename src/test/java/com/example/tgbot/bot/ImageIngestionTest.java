@@ -0,0 +1,125 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
+import org.telegram.telegrambots.meta.api.objects.File;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ImageIngestionTest {
+
+    private static final String SHARED_KEY = "0123456789abcdef0123456789abcdef";
+    private static final String NAME = "a".repeat(64) + ".jpg";
+
+    @TempDir
+    Path storageDir;
+
+    @Test
+    void failsWithoutSigningKeyWhenRequired() {
+        assertThatThrownBy(() -> ingestion("", true))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("signing-key");
+    }
+
+    @Test
+    void rejectsShortSigningKey() {
+        assertThatThrownBy(() -> ingestion("short", false))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("32 bytes");
+    }
+
+    @Test
+    void linkSignedByOneReplicaResolvesOnAnother() throws IOException {
+        Files.createFile(storageDir.resolve(NAME));
+        ImageIngestion signer = ingestion(SHARED_KEY, true);
+        ImageIngestion server = ingestion(SHARED_KEY, true);
+
+        UriComponents url = UriComponentsBuilder.fromUriString(signer.signedUrl(NAME)).build();
+        long expires = Long.parseLong(url.getQueryParams().getFirst("expires"));
+
+        assertThat(server.resolve(NAME, expires, url.getQueryParams().getFirst("sig")))
+                .contains(storageDir.resolve(NAME));
+    }
+
+    @Test
+    void randomKeysOfDifferentReplicasDoNotMatch() throws IOException {
+        Files.createFile(storageDir.resolve(NAME));
+        ImageIngestion signer = ingestion("", false);
+        ImageIngestion server = ingestion("", false);
+
+        UriComponents url = UriComponentsBuilder.fromUriString(signer.signedUrl(NAME)).build();
+        long expires = Long.parseLong(url.getQueryParams().getFirst("expires"));
+
+        assertThat(server.resolve(NAME, expires, url.getQueryParams().getFirst("sig"))).isEmpty();
+    }
+
+    @Test
+    void downloadWithoutReportedSizeIsCutOffAtMaxBytes() throws IOException {
+        TelegramApiClient client = mock(TelegramApiClient.class);
+        when(client.execute(any(GetFile.class))).thenReturn(Mono.just(telegramFile(null)));
+        // 600 + 600 байт при лимите 1024: file_size Telegram не прислал
+        when(client.downloadFile("photos/file_1.jpg")).thenReturn(Flux.just(chunk(600), chunk(600)));
+
+        assertThatThrownBy(() -> ingestion(client, SHARED_KEY, true).ingest("file-id", "unique-id").block())
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("too large");
+        try (Stream<Path> files = Files.list(storageDir)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void imageWithinMaxBytesIsStored() throws IOException {
+        TelegramApiClient client = mock(TelegramApiClient.class);
+        when(client.execute(any(GetFile.class))).thenReturn(Mono.just(telegramFile(null)));
+        when(client.downloadFile("photos/file_1.jpg")).thenReturn(Flux.just(chunk(512), chunk(512)));
+
+        String url = ingestion(client, SHARED_KEY, true).ingest("file-id", "unique-id").block();
+
+        assertThat(url).startsWith("https://bot.example.com/images/");
+        try (Stream<Path> files = Files.list(storageDir)) {
+            assertThat(files).singleElement().satisfies(file -> assertThat(Files.size(file)).isEqualTo(1024));
+        }
+    }
+
+    private static File telegramFile(Long fileSize) {
+        File file = new File();
+        file.setFileId("file-id");
+        file.setFileUniqueId("unique-id");
+        file.setFilePath("photos/file_1.jpg");
+        file.setFileSize(fileSize);
+        return file;
+    }
+
+    private static DataBuffer chunk(int size) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(new byte[size]);
+    }
+
+    private ImageIngestion ingestion(String signingKey, boolean requireSigningKey) {
+        return ingestion(mock(TelegramApiClient.class), signingKey, requireSigningKey);
+    }
+
+    private ImageIngestion ingestion(TelegramApiClient client, String signingKey, boolean requireSigningKey) {
+        return new ImageIngestion(client, new SimpleMeterRegistry(), storageDir,
+                "https://bot.example.com/", signingKey, requireSigningKey, Duration.ofHours(1), Duration.ofHours(2),
+                Duration.ofMinutes(50), Duration.ofMinutes(30), 100, 1024);
+    }
+}
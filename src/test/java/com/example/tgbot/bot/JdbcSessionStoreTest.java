@@ -0,0 +1,118 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import liquibase.integration.spring.SpringLiquibase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Сессии в H2 (режим PostgreSQL) со схемой из миграций. Два экземпляра хранилища
+ * над одной базой играют роль двух реплик.
+ */
+class JdbcSessionStoreTest {
+
+    private static final long CHAT_ID = 123456789L;
+
+    private JdbcTemplate jdbcTemplate;
+    private JdbcSessionStore replicaA;
+    private JdbcSessionStore replicaB;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        SpringLiquibase liquibase = new SpringLiquibase();
+        liquibase.setDataSource(dataSource);
+        liquibase.setChangeLog("classpath:db/changelog/chat-sessions-test.xml");
+        liquibase.setResourceLoader(new DefaultResourceLoader());
+        liquibase.afterPropertiesSet();
+
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        replicaA = newStore();
+        replicaB = newStore();
+    }
+
+    @Test
+    void unknownChatStartsInInitialState() {
+        UserSession session = replicaA.get(CHAT_ID);
+
+        assertThat(session.getState()).isEqualTo(BotState.INITIAL);
+        assertThat(session.getMessageHistory().isEmpty()).isTrue();
+    }
+
+    @Test
+    void sessionSurvivesRoundTripThroughDatabase() {
+        UserSession session = replicaA.get(CHAT_ID);
+        session.setState(BotState.WAITING_FOR_TEXT_DESCRIPTION);
+        session.setSelectedFormat("9:16");
+        session.putMessageHistory(MessageTemplate.MAIN_MENU);
+        session.putMessageHistory(MessageTemplate.GENERATION_STARTED, "Кот в шляпе \uD83D\uDE3A", "16:9");
+        replicaA.put(CHAT_ID, session);
+
+        UserSession loaded = replicaB.get(CHAT_ID);
+
+        assertThat(loaded.getState()).isEqualTo(BotState.WAITING_FOR_TEXT_DESCRIPTION);
+        assertThat(loaded.getSelectedFormat()).isEqualTo("9:16");
+        List<HistoryEntry> history = new ArrayList<>();
+        loaded.getMessageHistory().forEach(history::add);
+        assertThat(history).extracting(HistoryEntry::template)
+                .containsExactly(MessageTemplate.MAIN_MENU, MessageTemplate.GENERATION_STARTED);
+        assertThat(history.get(1).args()).containsExactly("Кот в шляпе \uD83D\uDE3A", "16:9");
+        assertThat(version()).isEqualTo(1);
+    }
+
+    @Test
+    void readSeesChangesMadeByAnotherReplica() {
+        replicaA.put(CHAT_ID, replicaA.get(CHAT_ID));
+        UserSession cachedByA = replicaA.get(CHAT_ID);
+        assertThat(cachedByA.getState()).isEqualTo(BotState.INITIAL);
+
+        UserSession session = replicaB.get(CHAT_ID);
+        session.setState(BotState.WAITING_FOR_IMAGE_UPLOAD);
+        replicaB.put(CHAT_ID, session);
+
+        assertThat(replicaA.get(CHAT_ID).getState()).isEqualTo(BotState.WAITING_FOR_IMAGE_UPLOAD);
+    }
+
+    @Test
+    void unchangedSessionIsServedFromNearCache() {
+        UserSession session = replicaA.get(CHAT_ID);
+        replicaA.put(CHAT_ID, session);
+
+        assertThat(replicaA.get(CHAT_ID)).isSameAs(session);
+    }
+
+    @Test
+    void concurrentWriteFromAnotherReplicaWins() {
+        UserSession onA = replicaA.get(CHAT_ID);
+        replicaA.put(CHAT_ID, onA);
+        onA = replicaA.get(CHAT_ID);
+        UserSession onB = replicaB.get(CHAT_ID);
+
+        onB.setState(BotState.WAITING_FOR_FORMAT_SELECTION);
+        replicaB.put(CHAT_ID, onB);
+        onA.setState(BotState.WAITING_FOR_PACKAGE_SELECTION);
+        replicaA.put(CHAT_ID, onA);
+
+        assertThat(version()).isEqualTo(2);
+        assertThat(replicaA.get(CHAT_ID).getState()).isEqualTo(BotState.WAITING_FOR_FORMAT_SELECTION);
+    }
+
+    private JdbcSessionStore newStore() {
+        return new JdbcSessionStore(jdbcTemplate, new SimpleMeterRegistry(), Duration.ofMinutes(5), 1000);
+    }
+
+    private long version() {
+        return jdbcTemplate.queryForObject("SELECT version FROM chat_sessions WHERE chat_id = ?", Long.class, CHAT_ID);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.tgbot.bot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.telegram.telegrambots.meta.api.methods.ParseMode;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import static com.example.tgbot.bot.MarkdownV2.arg;
+import static com.example.tgbot.bot.MarkdownV2.bold;
+import static com.example.tgbot.bot.MarkdownV2.link;
+import static com.example.tgbot.bot.MarkdownV2.quote;
+import static com.example.tgbot.bot.MarkdownV2.text;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+class MarkdownV2Test {
+
+    private static final String RESERVED = "_*[]()~`>#+-=|{}.!";
+
+    @Test
+    void everyReservedCharacterGetsOneBackslash() {
+        for (char c : (RESERVED + "\\").toCharArray()) {
+            assertThat(MarkdownV2.escape(String.valueOf(c))).as("escape of %s", c).isEqualTo("\\" + c);
+        }
+    }
+
+    @Test
+    void backslashesAreEscapedOnce() {
+        assertThat(MarkdownV2.escape("C:\\Users\\video\\")).isEqualTo("C:\\\\Users\\\\video\\\\");
+        assertThat(MarkdownV2.escape("\\)")).isEqualTo("\\\\\\)");
+    }
+
+    @Test
+    void surrogatePairsAreLeftIntact() {
+        String emoji = "\uD83C\uDFAC \uD83D\uDC4D\uD83C\uDFFD \uD83D\uDCFD️";
+
+        assertThat(MarkdownV2.escape(emoji)).isEqualTo(emoji);
+        assertThat(MarkdownV2.escape("\uD83D\uDC4D.")).isEqualTo("\uD83D\uDC4D\\.");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "a_b*c~d`e",
+            "C:\\Users\\video\\",
+            "Цена 1.5$ (со скидкой) [акция] {x} = 2+2-1 | #тег !",
+            "> уже цитата\n>> и ещё\n",
+            "**жирный** __курсив__ ||спойлер||",
+            "[ссылка](https://example.com/a_(b)) и \\)",
+            "\uD83C\uDFAC эмодзи \uD83D\uDC4D\uD83C\uDFFD и\r\nперенос",
+    })
+    void escapedTextParsesBackToOriginal(String text) {
+        assertThat(plainText(MarkdownV2.escape(text))).isEqualTo(text);
+    }
+
+    @Test
+    void quotedArgumentKeepsEveryLineInsideQuote() {
+        MarkdownV2.Template template = MarkdownV2.compile(text("Промпт:\n"), quote(arg(0)));
+
+        String rendered = template.render(new String[]{"первая\n> вторая\n- третья"});
+
+        assertThat(rendered).isEqualTo("Промпт:\n>первая\n>\\> вторая\n>\\- третья");
+        assertThat(plainText(rendered)).isEqualTo("Промпт:\nпервая\n> вторая\n- третья");
+    }
+
+    @Test
+    void boldAndLinkEscapeTheirContent() {
+        MarkdownV2.Template template = MarkdownV2.compile(
+                bold(text("Баланс: "), arg(0)), text("\n"), link("Сайт (beta)", "https://example.com/a_(b)"));
+
+        assertThat(template.render(new String[]{"5."}))
+                .isEqualTo("*Баланс: 5\\.*\n[Сайт \\(beta\\)](https://example.com/a_(b\\))");
+    }
+
+    @Test
+    void templateWithoutArgumentsIsPrecompiled() {
+        MarkdownV2.Template template = MarkdownV2.compile(text("Готово!"));
+
+        assertThat(template.render(new String[0])).isEqualTo("Готово\\!").isSameAs(template.render(new String[0]));
+    }
+
+    @Test
+    void generationDoneQuotesPrompt() {
+        SendMessage message = MessageRenderer.render(42L, MessageTemplate.GENERATION_DONE, "Кот_в (шляпе)\n> \uD83C\uDFA9!");
+
+        assertThat(message.getParseMode()).isEqualTo(ParseMode.MARKDOWNV2);
+        assertThat(message.getText()).endsWith(">Кот\\_в \\(шляпе\\)\n>\\> \uD83C\uDFA9\\!");
+    }
+
+    /**
+     * Текст, который Telegram покажет для разметки без форматирования: маркер цитаты в начале строки
+     * снимается, обратный слэш делает следующий символ литералом, а неэкранированный
+     * зарезервированный символ — ошибка разбора.
+     */
+    private static String plainText(String markdown) {
+        StringBuilder out = new StringBuilder(markdown.length());
+        boolean lineStart = true;
+        for (int i = 0; i < markdown.length(); i++) {
+            char c = markdown.charAt(i);
+            if (lineStart && c == '>') {
+                lineStart = false;
+                continue;
+            }
+            if (c == '\\') {
+                if (++i == markdown.length()) {
+                    fail("Dangling backslash in " + markdown);
+                }
+                c = markdown.charAt(i);
+            } else if (RESERVED.indexOf(c) >= 0) {
+                fail("Unescaped reserved character '" + c + "' in " + markdown);
+            }
+            out.append(c);
+            lineStart = c == '\n';
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.tgbot.bot;
+
+import com.example.tgbot.bot.OutboundSender.Lane;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Темп и порядок отправки. Вызовы Bot API подменены: каждый записывает, что и когда ушло.
+ */
+class OutboundSenderTest {
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> sentAt = new ConcurrentHashMap<>();
+    private OutboundSender sender;
+
+    @AfterEach
+    void tearDown() {
+        sender.stop();
+    }
+
+    @Test
+    void retryAfterPausesChatAndKeepsItsOrder() throws Exception {
+        sender = new OutboundSender(new SimpleMeterRegistry(), 30, 10, 3, 3);
+        sender.start();
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletableFuture<String> throttled = sender.submit(1L, Lane.INTERACTIVE, () -> {
+            int attempt = attempts.incrementAndGet();
+            record("first#" + attempt);
+            return attempt == 1 ? Mono.error(tooManyRequests(1)) : Mono.just("first");
+        });
+        CompletableFuture<String> next = sender.submit(1L, Lane.INTERACTIVE, call("second"));
+        CompletableFuture<String> otherChat = sender.submit(2L, Lane.INTERACTIVE, call("other"));
+
+        assertThat(otherChat.get(5, TimeUnit.SECONDS)).isEqualTo("other");
+        assertThat(throttled.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(next.get(5, TimeUnit.SECONDS)).isEqualTo("second");
+
+        // Пауза retry_after касается только своего чата, и повтор уходит раньше следующего сообщения
+        assertThat(sent).containsExactly("first#1", "other", "first#2", "second");
+        assertThat(sentAt.get("other") - sentAt.get("first#1")).isLessThan(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(sentAt.get("first#2") - sentAt.get("first#1")).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    void chatIsPacedAfterBurst() throws Exception {
+        sender = new OutboundSender(new SimpleMeterRegistry(), 30, 10, 1, 3);
+        sender.start();
+
+        CompletableFuture<String> first = sender.submit(1L, Lane.INTERACTIVE, call("first"));
+        CompletableFuture<String> second = sender.submit(1L, Lane.INTERACTIVE, call("second"));
+
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        // per-chat-rate 10 в секунду без запаса: не чаще раза в 100 мс
+        assertThat(sentAt.get("second") - sentAt.get("first")).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    @Test
+    void moreImportantLaneGoesFirstAcrossChats() throws Exception {
+        sender = new OutboundSender(new SimpleMeterRegistry(), 30, 10, 3, 3);
+
+        CompletableFuture<String> background = sender.submit(1L, Lane.BACKGROUND, call("broadcast"));
+        CompletableFuture<String> video = sender.submit(2L, Lane.VIDEO, call("video"));
+        sender.start();
+
+        background.get(5, TimeUnit.SECONDS);
+        video.get(5, TimeUnit.SECONDS);
+        assertThat(sent).containsExactly("video", "broadcast");
+    }
+
+    @Test
+    void throttledMessageFailsAfterMaxRetries() {
+        sender = new OutboundSender(new SimpleMeterRegistry(), 30, 10, 3, 0);
+        sender.start();
+
+        CompletableFuture<String> throttled = sender.submit(1L, Lane.INTERACTIVE, () -> Mono.error(tooManyRequests(1)));
+
+        assertThatThrownBy(() -> throttled.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(TelegramApiRequestException.class);
+        assertThat(sender.pending()).isZero();
+    }
+
+    private Supplier<Mono<String>> call(String label) {
+        return () -> {
+            record(label);
+            return Mono.just(label);
+        };
+    }
+
+    private void record(String label) {
+        sent.add(label);
+        sentAt.put(label, System.nanoTime());
+    }
+
+    private static TelegramApiRequestException tooManyRequests(int retryAfter) {
+        try {
+            ApiResponse<?> response = new ObjectMapper().readValue(
+                    "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after " + retryAfter
+                            + "\",\"parameters\":{\"retry_after\":" + retryAfter + "}}", ApiResponse.class);
+            return new TelegramApiRequestException("Error sending message", response);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
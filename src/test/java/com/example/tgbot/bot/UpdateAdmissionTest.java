@@ -0,0 +1,98 @@
+package com.example.tgbot.bot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class UpdateAdmissionTest {
+
+    private final List<Integer> processed = new CopyOnWriteArrayList<>();
+    private SoraVideoBot bot;
+    private UpdateAdmission admission;
+
+    @BeforeEach
+    void setUp() {
+        bot = mock(SoraVideoBot.class);
+        when(bot.submitUpdate(any(), anyLong(), any())).thenAnswer(invocation -> {
+            processed.add(invocation.<Update>getArgument(0).getUpdateId());
+            invocation.<Runnable>getArgument(2).run();
+            return true;
+        });
+        admission = new UpdateAdmission(bot, mock(TelegramApiClient.class), new SimpleMeterRegistry(),
+                100, 10, Duration.ofSeconds(60), 1000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        admission.stop();
+    }
+
+    @Test
+    void priorityReordersChatsButNotUpdatesWithinAChat() throws InterruptedException {
+        admission.admit(message(1, 100L));
+        admission.admit(callback(2, 100L));
+        admission.admit(callback(3, 200L));
+
+        admission.start();
+
+        awaitProcessed(3);
+        // Callback чата 200 обгоняет чужое сообщение, но callback чата 100 идёт после его сообщения
+        assertThat(processed).containsExactly(3, 1, 2);
+    }
+
+    @Test
+    void redeliveredUpdateIsProcessedOnce() throws InterruptedException {
+        admission.admit(message(1, 100L));
+        admission.admit(message(1, 100L));
+
+        admission.start();
+
+        awaitProcessed(1);
+        assertThat(processed).containsExactly(1);
+    }
+
+    private void awaitProcessed(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (processed.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(processed).hasSizeGreaterThanOrEqualTo(count);
+    }
+
+    private Update message(int updateId, long chatId) {
+        Message message = new Message();
+        message.setChat(new Chat(chatId, "private"));
+        message.setText("кот в шляпе");
+        message.setDate((int) (System.currentTimeMillis() / 1000));
+        Update update = new Update();
+        update.setUpdateId(updateId);
+        update.setMessage(message);
+        when(bot.resolveChatId(update)).thenReturn(chatId);
+        return update;
+    }
+
+    private Update callback(int updateId, long chatId) {
+        CallbackQuery query = new CallbackQuery();
+        query.setId("q" + updateId);
+        query.setData("menu_back");
+        Update update = new Update();
+        update.setUpdateId(updateId);
+        update.setCallbackQuery(query);
+        when(bot.resolveChatId(update)).thenReturn(chatId);
+        return update;
+    }
+}
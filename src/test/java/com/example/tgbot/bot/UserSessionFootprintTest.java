@@ -0,0 +1,50 @@
+package com.example.tgbot.bot;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Размер сессии в куче по графу объектов (JOL). Сессии меряются пачкой, чтобы общие
+ * для всех объекты — константы enum и их имена — не учитывались в каждой сессии.
+ */
+@Slf4j
+class UserSessionFootprintTest {
+
+    private static final int SESSIONS = 10_000;
+    private static final long GB = 1L << 30;
+
+    @Test
+    void fullSessionFitsIntoOneKilobyte() {
+        List<UserSession> sessions = new ArrayList<>(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.add(fullSession(i));
+        }
+
+        long total = GraphLayout.parseInstance(sessions).totalSize();
+        long perSession = total / SESSIONS;
+        log.info("Session footprint: {} bytes, {} sessions per GB", perSession, GB / perSession);
+
+        assertThat(perSession).isLessThan(1024);
+    }
+
+    /**
+     * Сессия с заполненной историей: пять экранов с аргументами разной длины.
+     */
+    private static UserSession fullSession(int i) {
+        UserSession session = new UserSession();
+        session.setState(BotState.WAITING_FOR_TEXT_DESCRIPTION);
+        session.setSelectedFormat(new String("16:9"));
+        session.putMessageHistory(MessageTemplate.MAIN_MENU);
+        session.putMessageHistory(MessageTemplate.FORMAT_SELECTION);
+        session.putMessageHistory(MessageTemplate.DESCRIPTION_PROMPT, String.valueOf(i % 10));
+        session.putMessageHistory(MessageTemplate.GENERATION_STARTED, "Кот в шляпе идёт по мосту на закате #" + i);
+        session.putMessageHistory(MessageTemplate.MAIN_MENU);
+        return session;
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.tgbot.bot;
+
+import com.example.tgbot.service.GeneratedVideo;
+import com.example.tgbot.service.GenerationJobService;
+import com.example.tgbot.service.VideoFileIdCache;
+import com.example.tgbot.service.VideoGenerationService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Video;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class VideoDeliveryTest {
+
+    private static final long CHAT_ID = 42L;
+    private static final GeneratedVideo VIDEO = new GeneratedVideo("task-1", VideoGenerationService.TEXT_TO_VIDEO_MODEL,
+            "16:9", "Кот в шляпе", "https://example.com/video.mp4");
+
+    private TelegramApiClient telegramApiClient;
+    private VideoFileIdCache videoFileIdCache;
+    private GenerationJobService generationJobService;
+    private VideoDelivery delivery;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        OutboundSender outboundSender = mock(OutboundSender.class);
+        when(outboundSender.submit(anyLong(), any(), any()))
+                .thenAnswer(invocation -> invocation.<Supplier<Mono<Message>>>getArgument(2).get().toFuture());
+        telegramApiClient = mock(TelegramApiClient.class);
+        videoFileIdCache = mock(VideoFileIdCache.class);
+        generationJobService = mock(GenerationJobService.class);
+        delivery = new VideoDelivery(outboundSender, telegramApiClient, videoFileIdCache, generationJobService,
+                new SimpleMeterRegistry(), Duration.ofSeconds(5));
+    }
+
+    @Test
+    void uploadsWhenTelegramCannotFetchUrl() throws Exception {
+        when(telegramApiClient.sendVideo(any())).thenReturn(Mono.error(apiError(400, "Bad Request: failed to get HTTP URL content")));
+        when(telegramApiClient.uploadVideo(any(), any(), anyString())).thenReturn(Mono.just(sentVideo("file-1")));
+
+        Message sent = delivery.deliver(CHAT_ID, VIDEO).block(Duration.ofSeconds(5));
+
+        assertThat(sent.getVideo().getFileId()).isEqualTo("file-1");
+        verify(videoFileIdCache).remember(CHAT_ID, VIDEO, "file-1");
+        verify(generationJobService).markDelivered("task-1");
+    }
+
+    @Test
+    void chatNotFoundIsNotRetriedAsUpload() throws Exception {
+        when(telegramApiClient.sendVideo(any())).thenReturn(Mono.error(apiError(400, "Bad Request: chat not found")));
+
+        assertThatThrownBy(() -> delivery.deliver(CHAT_ID, VIDEO).block(Duration.ofSeconds(5)))
+                .hasRootCauseInstanceOf(TelegramApiRequestException.class);
+
+        verify(telegramApiClient, never()).uploadVideo(any(), any(), anyString());
+        verify(generationJobService, never()).markDelivered(anyString());
+    }
+
+    @Test
+    void blockedBotIsNotRetriedAsUpload() throws Exception {
+        when(telegramApiClient.sendVideo(any())).thenReturn(Mono.error(apiError(403, "Forbidden: bot was blocked by the user")));
+
+        assertThatThrownBy(() -> delivery.deliver(CHAT_ID, VIDEO).block(Duration.ofSeconds(5)))
+                .hasRootCauseInstanceOf(TelegramApiRequestException.class);
+
+        verify(telegramApiClient, never()).uploadVideo(any(), any(), anyString());
+        verify(generationJobService, never()).markDelivered(anyString());
+    }
+
+    @Test
+    void onlyFileIdErrorsRejectCachedVideo() throws Exception {
+        assertThat(VideoDelivery.isFileIdRejected(apiError(400, "Bad Request: wrong file identifier/HTTP URL specified"))).isTrue();
+        assertThat(VideoDelivery.isFileIdRejected(apiError(400, "Bad Request: wrong remote file identifier specified: Wrong padding in the string"))).isTrue();
+        assertThat(VideoDelivery.isFileIdRejected(apiError(403, "Forbidden: bot was blocked by the user"))).isFalse();
+        assertThat(VideoDelivery.isFileIdRejected(apiError(400, "Bad Request: chat not found"))).isFalse();
+        assertThat(VideoDelivery.isFileIdRejected(new IllegalStateException("timeout"))).isFalse();
+    }
+
+    private static TelegramApiRequestException apiError(int code, String description) throws Exception {
+        ApiResponse<?> response = new ObjectMapper().readValue(
+                "{\"ok\":false,\"error_code\":" + code + ",\"description\":\"" + description + "\"}", ApiResponse.class);
+        return new TelegramApiRequestException("Error sending video", response);
+    }
+
+    private static Message sentVideo(String fileId) {
+        Video video = new Video();
+        video.setFileId(fileId);
+        Message message = new Message();
+        message.setVideo(video);
+        return message;
+    }
+}
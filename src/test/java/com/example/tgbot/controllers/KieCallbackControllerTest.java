@@ -0,0 +1,85 @@
+package com.example.tgbot.controllers;
+
+import com.example.tgbot.service.KieTaskPoller;
+import com.example.tgbot.web.RecordInfoResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Колбэки Kie.ai против локального контроллера: так же, как их шлёт сам Kie.ai.
+ */
+class KieCallbackControllerTest {
+
+    private static final String CALLBACK = """
+            {"code":200,"msg":"success","data":{"taskId":"task-1","model":"sora-2-text-to-video","state":"success",
+             "resultJson":"{\\"resultUrls\\":[\\"https://example.com/video.mp4\\"]}","completeTime":2000,"createTime":1000}}
+            """;
+
+    private KieTaskPoller poller;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        poller = mock(KieTaskPoller.class);
+        mockMvc = MockMvcBuilders.standaloneSetup(new KieCallbackController(poller, "secret")).build();
+    }
+
+    @Test
+    void rejectsMissingToken() throws Exception {
+        mockMvc.perform(post("/kieai/callback").contentType(MediaType.APPLICATION_JSON).content(CALLBACK))
+                .andExpect(status().isForbidden());
+        verify(poller, never()).resolve(any());
+    }
+
+    @Test
+    void rejectsWrongToken() throws Exception {
+        mockMvc.perform(post("/kieai/callback").param("token", "secreT")
+                        .contentType(MediaType.APPLICATION_JSON).content(CALLBACK))
+                .andExpect(status().isForbidden());
+        verify(poller, never()).resolve(any());
+    }
+
+    @Test
+    void rejectsEverythingWithoutConfiguredToken() throws Exception {
+        MockMvc unconfigured = MockMvcBuilders.standaloneSetup(new KieCallbackController(poller, "")).build();
+        unconfigured.perform(post("/kieai/callback").param("token", "")
+                        .contentType(MediaType.APPLICATION_JSON).content(CALLBACK))
+                .andExpect(status().isForbidden());
+        verify(poller, never()).resolve(any());
+    }
+
+    @Test
+    void completesTaskWithValidToken() throws Exception {
+        when(poller.resolve(any())).thenReturn(true);
+
+        mockMvc.perform(post("/kieai/callback").param("token", "secret")
+                        .contentType(MediaType.APPLICATION_JSON).content(CALLBACK))
+                .andExpect(status().isOk());
+
+        ArgumentCaptor<RecordInfoResponse> captor = ArgumentCaptor.forClass(RecordInfoResponse.class);
+        verify(poller).resolve(captor.capture());
+        RecordInfoResponse.DataBlock data = captor.getValue().getData();
+        assertThat(data.getTaskId()).isEqualTo("task-1");
+        assertThat(data.getState()).isEqualTo("success");
+        assertThat(data.getResultJson()).contains("https://example.com/video.mp4");
+    }
+
+    @Test
+    void acknowledgesCallbackForUnknownTask() throws Exception {
+        when(poller.resolve(any())).thenReturn(false);
+
+        mockMvc.perform(post("/kieai/callback").param("token", "secret")
+                        .contentType(MediaType.APPLICATION_JSON).content(CALLBACK))
+                .andExpect(status().isOk());
+    }
+}
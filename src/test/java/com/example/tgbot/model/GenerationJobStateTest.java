@@ -0,0 +1,34 @@
+package com.example.tgbot.model;
+
+import org.junit.jupiter.api.Test;
+
+import static com.example.tgbot.model.GenerationJobState.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GenerationJobStateTest {
+
+    @Test
+    void runningJobCompletesOrFails() {
+        assertThat(RUNNING.canMoveTo(SUCCEEDED)).isTrue();
+        assertThat(RUNNING.canMoveTo(FAILED)).isTrue();
+        assertThat(RUNNING.canMoveTo(DELIVERED)).isFalse();
+    }
+
+    @Test
+    void succeededJobIsDeliveredOrFails() {
+        assertThat(SUCCEEDED.canMoveTo(DELIVERED)).isTrue();
+        assertThat(SUCCEEDED.canMoveTo(FAILED)).isTrue();
+        assertThat(SUCCEEDED.canMoveTo(RUNNING)).isFalse();
+        assertThat(SUCCEEDED.isTerminal()).isFalse();
+    }
+
+    @Test
+    void terminalStatesDoNotMove() {
+        for (GenerationJobState next : values()) {
+            assertThat(DELIVERED.canMoveTo(next)).isFalse();
+            assertThat(FAILED.canMoveTo(next)).isFalse();
+        }
+        assertThat(DELIVERED.isTerminal()).isTrue();
+        assertThat(FAILED.isTerminal()).isTrue();
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.tgbot.repository;
+
+import com.example.tgbot.PostgresContainerConfig;
+import com.example.tgbot.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Атомарные debitOne/credit под конкурентной нагрузкой на настоящем PostgreSQL:
+ * сотни потоков бьют в одну строку users, баланс не теряет обновлений и не уходит в минус.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import(PostgresContainerConfig.class)
+class UserRepositoryConcurrencyTest {
+
+    private static final int THREADS = 200;
+    private static final AtomicLong TELEGRAM_IDS = new AtomicLong(5_000);
+
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private ExecutorService executor;
+    private CountDownLatch start;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS);
+        start = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void concurrentDebitsNeverOverdraw() throws Exception {
+        long telegramId = newUser(100);
+
+        List<Future<Boolean>> debits = submit(500, () -> userRepository.debitOne(telegramId)
+                .map(balance -> {
+                    assertThat(balance).isNotNegative();
+                    return true;
+                })
+                .orElse(false));
+
+        assertThat(successes(debits)).isEqualTo(100);
+        assertThat(balanceOf(telegramId)).isZero();
+    }
+
+    @Test
+    void concurrentCreditsAreNotLost() throws Exception {
+        long telegramId = newUser(0);
+
+        List<Future<Boolean>> credits = submit(500, () -> userRepository.credit(telegramId, 2).isPresent());
+
+        assertThat(successes(credits)).isEqualTo(500);
+        assertThat(balanceOf(telegramId)).isEqualTo(1000);
+    }
+
+    @Test
+    void interleavedDebitsAndCreditsAddUp() throws Exception {
+        long telegramId = newUser(50);
+        AtomicInteger credited = new AtomicInteger();
+        AtomicInteger debited = new AtomicInteger();
+
+        // Каждое третье обращение — начисление, остальные — списания, вперемешку
+        List<Future<Boolean>> calls = submit(900, i -> i % 3 == 0
+                ? () -> count(userRepository.credit(telegramId, 1).isPresent(), credited)
+                : () -> count(userRepository.debitOne(telegramId).isPresent(), debited));
+        successes(calls);
+
+        assertThat(credited.get()).isEqualTo(300);
+        assertThat(debited.get()).isLessThanOrEqualTo(350);
+        assertThat(balanceOf(telegramId)).isEqualTo(50 + credited.get() - debited.get()).isNotNegative();
+    }
+
+    private static boolean count(boolean succeeded, AtomicInteger counter) {
+        if (succeeded) {
+            counter.incrementAndGet();
+        }
+        return succeeded;
+    }
+
+    private long newUser(int balance) {
+        long telegramId = TELEGRAM_IDS.incrementAndGet();
+        userRepository.save(User.builder().telegramId(telegramId).balance(balance).build());
+        return telegramId;
+    }
+
+    /**
+     * Ставит задачи в пул и отпускает их все одновременно при первом {@link #successes}.
+     */
+    private List<Future<Boolean>> submit(int count, Callable<Boolean> call) {
+        return submit(count, i -> call);
+    }
+
+    private List<Future<Boolean>> submit(int count, IntFunction<Callable<Boolean>> calls) {
+        List<Future<Boolean>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Callable<Boolean> call = calls.apply(i);
+            futures.add(executor.submit(() -> {
+                start.await();
+                return call.call();
+            }));
+        }
+        return futures;
+    }
+
+    private int successes(List<Future<Boolean>> futures) throws Exception {
+        start.countDown();
+        int succeeded = 0;
+        for (Future<Boolean> future : futures) {
+            if (future.get(60, TimeUnit.SECONDS)) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+
+    private int balanceOf(long telegramId) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM users WHERE telegram_id = ?", Integer.class, telegramId);
+    }
+}
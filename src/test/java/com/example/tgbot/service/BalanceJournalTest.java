@@ -0,0 +1,110 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.PostgresContainerConfig;
+import com.example.tgbot.model.BalanceEventType;
+import com.example.tgbot.model.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.IllegalTransactionStateException;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Событие журнала пишется в транзакции изменения баланса и разделяет её судьбу.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({PostgresContainerConfig.class, BalanceJournalTest.Config.class, UserService.class, BalanceJournal.class})
+class BalanceJournalTest {
+
+    private static final AtomicLong TELEGRAM_IDS = new AtomicLong(10_000);
+
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private BalanceJournal balanceJournal;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void debitAndRefundShareCorrelationId() {
+        long telegramId = TELEGRAM_IDS.incrementAndGet();
+        User user = userService.addBalance(userService.findOrCreateUser(telegramId), 2, BalanceEventType.GIFT);
+
+        userService.consumeOneGeneration(user, "generation-1");
+        userService.refundGeneration(telegramId, "task-1", "generation-1");
+
+        List<Map<String, Object>> events = jdbcTemplate.queryForList(
+                "SELECT type, amount, balance_after, task_id FROM balance_events WHERE correlation_id = ? ORDER BY id",
+                "generation-1");
+        assertThat(events).extracting(event -> event.get("type")).containsExactly("DEBIT", "REFUND");
+        assertThat(events).extracting(event -> event.get("balance_after")).containsExactly(1, 2);
+        assertThat(events.get(1).get("task_id")).isEqualTo("task-1");
+    }
+
+    @Test
+    void secondRefundOfSameGenerationIsRejected() {
+        long telegramId = TELEGRAM_IDS.incrementAndGet();
+        User user = userService.addBalance(userService.findOrCreateUser(telegramId), 1, BalanceEventType.GIFT);
+        userService.consumeOneGeneration(user, "generation-3");
+        userService.refundGeneration(telegramId, "task-3", "generation-3");
+
+        assertThatThrownBy(() -> userService.refundGeneration(telegramId, "task-3", "generation-3"))
+                .isInstanceOf(DataIntegrityViolationException.class);
+
+        // Повторный возврат откатился вместе со своим UPDATE баланса
+        assertThat(jdbcTemplate.queryForObject("SELECT balance FROM users WHERE telegram_id = ?",
+                Integer.class, telegramId)).isEqualTo(1);
+    }
+
+    @Test
+    void rolledBackDebitLeavesNoEvent() {
+        long telegramId = TELEGRAM_IDS.incrementAndGet();
+        User user = userService.addBalance(userService.findOrCreateUser(telegramId), 1, BalanceEventType.GIFT);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            userService.consumeOneGeneration(user, "generation-2");
+            status.setRollbackOnly();
+        });
+
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM balance_events WHERE correlation_id = ?",
+                Integer.class, "generation-2")).isZero();
+        assertThat(jdbcTemplate.queryForObject("SELECT balance FROM users WHERE telegram_id = ?",
+                Integer.class, telegramId)).isEqualTo(1);
+    }
+
+    @Test
+    void recordOutsideTransactionIsRejected() {
+        assertThatThrownBy(() -> balanceJournal.record(1L, BalanceEventType.GIFT, 1, 1, null, null))
+                .isInstanceOf(IllegalTransactionStateException.class);
+    }
+
+    @TestConfiguration(proxyBeanMethods = false)
+    static class Config {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
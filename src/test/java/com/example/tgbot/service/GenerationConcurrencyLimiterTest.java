@@ -0,0 +1,120 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.service.GenerationConcurrencyLimiter.Permit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GenerationConcurrencyLimiterTest {
+
+    private static final String SORA = "sora-2-text-to-video";
+    private static final String VEO = "veo3";
+
+    private final List<Integer> positions = new ArrayList<>();
+
+    @Test
+    void queuedGenerationsAreGrantedInArrivalOrder() {
+        GenerationConcurrencyLimiter limiter = limiter(1, "");
+        AtomicReference<Permit> running = acquire(limiter, SORA);
+        AtomicReference<Permit> first = acquire(limiter, SORA);
+        AtomicReference<Permit> second = acquire(limiter, SORA);
+
+        assertThat(positions).containsExactly(1, 2);
+        assertThat(first.get()).isNull();
+
+        running.get().release();
+        assertThat(first.get()).isNotNull();
+        assertThat(second.get()).isNull();
+
+        first.get().release();
+        assertThat(second.get()).isNotNull();
+        assertThat(limiter.queueSize()).isZero();
+    }
+
+    @Test
+    void exhaustedModelBudgetDoesNotHoldBackOtherModels() {
+        GenerationConcurrencyLimiter limiter = limiter(10, SORA + ":1");
+        AtomicReference<Permit> running = acquire(limiter, SORA);
+        AtomicReference<Permit> queuedSora = acquire(limiter, SORA);
+
+        // Очередь не пуста, но ждут в ней только генерации модели с исчерпанным бюджетом
+        AtomicReference<Permit> veo = acquire(limiter, VEO);
+
+        assertThat(veo.get()).isNotNull();
+        assertThat(queuedSora.get()).isNull();
+        assertThat(limiter.inFlight()).isEqualTo(2);
+
+        running.get().release();
+        assertThat(queuedSora.get()).isNotNull();
+    }
+
+    @Test
+    void newGenerationDoesNotOvertakeQueuedGenerationOfSameModel() {
+        GenerationConcurrencyLimiter limiter = limiter(1, "");
+        AtomicReference<Permit> running = acquire(limiter, SORA);
+        AtomicReference<Permit> queued = acquire(limiter, SORA);
+
+        running.get().release();
+        AtomicReference<Permit> late = acquire(limiter, SORA);
+
+        assertThat(queued.get()).isNotNull();
+        assertThat(late.get()).isNull();
+        assertThat(positions).containsExactly(1, 1);
+    }
+
+    @Test
+    void cancelledWaiterLeavesQueueAndNextOneIsGranted() {
+        GenerationConcurrencyLimiter limiter = limiter(1, "");
+        AtomicReference<Permit> running = acquire(limiter, SORA);
+        AtomicReference<Permit> cancelled = new AtomicReference<>();
+        Disposable subscription = limiter.acquire(SORA, positions::add).subscribe(cancelled::set);
+        AtomicReference<Permit> next = acquire(limiter, SORA);
+
+        subscription.dispose();
+        assertThat(limiter.queueSize()).isEqualTo(1);
+
+        running.get().release();
+        assertThat(cancelled.get()).isNull();
+        assertThat(next.get()).isNotNull();
+    }
+
+    @Test
+    void releasedPermitFreesModelBudget() {
+        GenerationConcurrencyLimiter limiter = limiter(10, SORA + ":1");
+        AtomicReference<Permit> first = acquire(limiter, SORA);
+
+        first.get().release();
+        first.get().release();
+
+        assertThat(limiter.inFlight()).isZero();
+        assertThat(acquire(limiter, SORA).get()).isNotNull();
+        assertThat(acquire(limiter, SORA).get()).isNull();
+    }
+
+    @Test
+    void fullQueueRejectsGeneration() {
+        GenerationConcurrencyLimiter limiter = new GenerationConcurrencyLimiter(new SimpleMeterRegistry(), 1, 1, "");
+        acquire(limiter, SORA);
+        acquire(limiter, SORA);
+
+        assertThatThrownBy(() -> limiter.acquire(SORA, positions::add).block())
+                .hasMessage("Generation queue is full");
+    }
+
+    private GenerationConcurrencyLimiter limiter(int maxInFlight, String perModel) {
+        return new GenerationConcurrencyLimiter(new SimpleMeterRegistry(), maxInFlight, 100, perModel);
+    }
+
+    private AtomicReference<Permit> acquire(GenerationConcurrencyLimiter limiter, String model) {
+        AtomicReference<Permit> permit = new AtomicReference<>();
+        limiter.acquire(model, positions::add).subscribe(permit::set);
+        return permit;
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.PostgresContainerConfig;
+import com.example.tgbot.model.BalanceEventType;
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.User;
+import com.example.tgbot.repository.GenerationJobRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Аренда задач между репликами: бин — одна реплика, вручную созданные сервисы — другие.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({PostgresContainerConfig.class, GenerationJobLeaseTest.Config.class,
+        UserService.class, BalanceJournal.class, GenerationJobService.class})
+class GenerationJobLeaseTest {
+
+    private static final AtomicLong TELEGRAM_IDS = new AtomicLong(20_000);
+
+    @Autowired
+    private GenerationJobService generationJobService;
+    @Autowired
+    private GenerationJobRepository generationJobRepository;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void liveLeaseIsNotClaimedByAnotherReplica() {
+        GenerationJob job = reserve(TELEGRAM_IDS.incrementAndGet());
+
+        assertThat(otherReplica().claimExpiredJobs()).extracting(GenerationJob::getId).doesNotContain(job.getId());
+    }
+
+    @Test
+    void expiredLeaseIsClaimedByOneReplica() {
+        GenerationJob job = reserve(TELEGRAM_IDS.incrementAndGet());
+        jdbcTemplate.update("UPDATE generation_jobs SET lease_until = ? WHERE id = ?",
+                Timestamp.from(Instant.now().minusSeconds(1)), job.getId());
+
+        assertThat(otherReplica().claimExpiredJobs()).extracting(GenerationJob::getId).contains(job.getId());
+        assertThat(otherReplica().claimExpiredJobs()).extracting(GenerationJob::getId).doesNotContain(job.getId());
+    }
+
+    @Test
+    void failedReservationIsRefundedOnce() {
+        long telegramId = TELEGRAM_IDS.incrementAndGet();
+        GenerationJob job = reserve(telegramId);
+
+        assertThat(generationJobService.markFailed(job.getCorrelationId(), "Kie.ai queue is full")).isTrue();
+        assertThat(generationJobService.markFailed(job.getCorrelationId(), "Kie.ai queue is full")).isFalse();
+
+        assertThat(jdbcTemplate.queryForObject("SELECT balance FROM users WHERE telegram_id = ?",
+                Integer.class, telegramId)).isEqualTo(1);
+        assertThat(jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM balance_events WHERE correlation_id = ? AND type = 'REFUND'",
+                Integer.class, job.getCorrelationId())).isEqualTo(1);
+    }
+
+    private GenerationJob reserve(long telegramId) {
+        User user = userService.addBalance(userService.findOrCreateUser(telegramId), 1, BalanceEventType.GIFT);
+        return generationJobService.reserve(user, telegramId, VideoGenerationService.TEXT_TO_VIDEO_MODEL, "16:9", "cat");
+    }
+
+    private GenerationJobService otherReplica() {
+        return new GenerationJobService(generationJobRepository, userService, Duration.ofSeconds(90));
+    }
+
+    @TestConfiguration(proxyBeanMethods = false)
+    static class Config {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.GenerationJobState;
+import com.example.tgbot.repository.GenerationJobRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class GenerationJobServiceTest {
+
+    private GenerationJobRepository repository;
+    private UserService userService;
+    private GenerationJobService service;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(GenerationJobRepository.class);
+        userService = mock(UserService.class);
+        when(repository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        service = new GenerationJobService(repository, userService, Duration.ofSeconds(90));
+    }
+
+    @Test
+    void pendingJobStartsWithTaskId() {
+        GenerationJob job = job(GenerationJobState.PENDING);
+
+        assertThat(service.start("generation", "task")).contains(job);
+
+        assertThat(job.getState()).isEqualTo(GenerationJobState.RUNNING);
+        assertThat(job.getTaskId()).isEqualTo("task");
+    }
+
+    @Test
+    void cancelledReservationDoesNotStart() {
+        GenerationJob job = job(GenerationJobState.FAILED);
+
+        assertThat(service.start("generation", "task")).isEmpty();
+
+        assertThat(job.getTaskId()).isNull();
+        verify(repository, never()).save(any());
+    }
+
+    @Test
+    void succeededJobKeepsResultUntilDelivered() {
+        GenerationJob job = job(GenerationJobState.RUNNING);
+
+        service.markSucceeded("task", "https://example.com/video.mp4");
+
+        assertThat(job.getState()).isEqualTo(GenerationJobState.SUCCEEDED);
+        assertThat(job.getResultUrl()).isEqualTo("https://example.com/video.mp4");
+        assertThat(job.getCompletedAt()).isNotNull();
+
+        service.markDelivered("task");
+
+        assertThat(job.getState()).isEqualTo(GenerationJobState.DELIVERED);
+        verify(repository, times(2)).save(job);
+    }
+
+    @Test
+    void runningJobIsNotMarkedDelivered() {
+        GenerationJob job = job(GenerationJobState.RUNNING);
+
+        service.markDelivered("task");
+
+        assertThat(job.getState()).isEqualTo(GenerationJobState.RUNNING);
+        verify(repository, never()).save(any());
+    }
+
+    @Test
+    void deliveredJobIgnoresLateResultAndIsNotRefunded() {
+        GenerationJob job = job(GenerationJobState.DELIVERED);
+
+        service.markSucceeded("task", "https://example.com/other.mp4");
+
+        assertThat(service.markFailed("generation", "late failure")).isFalse();
+        assertThat(job.getState()).isEqualTo(GenerationJobState.DELIVERED);
+        verify(repository, never()).save(any());
+        verifyNoInteractions(userService);
+    }
+
+    @Test
+    void failedJobIsRefundedOnce() {
+        GenerationJob job = job(GenerationJobState.SUCCEEDED);
+
+        assertThat(service.markFailed("generation", "Delivery failed")).isTrue();
+        assertThat(service.markFailed("generation", "Delivery failed")).isFalse();
+
+        assertThat(job.getState()).isEqualTo(GenerationJobState.FAILED);
+        assertThat(job.getFailMessage()).isEqualTo("Delivery failed");
+        verify(userService).refundGeneration(1L, "task", "generation");
+    }
+
+    @Test
+    void pendingJobIsRefundedWithoutTask() {
+        GenerationJob job = job(GenerationJobState.PENDING);
+        job.setTaskId(null);
+
+        assertThat(service.markFailed("generation", "Kie.ai queue is full")).isTrue();
+
+        verify(userService).refundGeneration(1L, null, "generation");
+    }
+
+    @Test
+    void onlyJobsWithTakenLeaseAreClaimed() {
+        GenerationJob mine = GenerationJob.builder().id(1L).correlationId("a").state(GenerationJobState.RUNNING).build();
+        GenerationJob renewed = GenerationJob.builder().id(2L).correlationId("b").state(GenerationJobState.PENDING).build();
+        when(repository.findAllByStateInAndLeaseUntilBefore(any(), any())).thenReturn(List.of(mine, renewed));
+        when(repository.claim(eq(1L), anyString(), any(), any(), any())).thenReturn(1);
+        when(repository.claim(eq(2L), anyString(), any(), any(), any())).thenReturn(0);
+        when(repository.findById(1L)).thenReturn(Optional.of(mine));
+
+        assertThat(service.claimExpiredJobs()).containsExactly(mine);
+
+        verify(repository).findAllByStateInAndLeaseUntilBefore(
+                eq(EnumSet.of(GenerationJobState.PENDING, GenerationJobState.RUNNING, GenerationJobState.SUCCEEDED)),
+                any(Instant.class));
+    }
+
+    private GenerationJob job(GenerationJobState state) {
+        GenerationJob job = GenerationJob.builder()
+                .taskId(state == GenerationJobState.PENDING ? null : "task")
+                .correlationId("generation")
+                .chatId(1L)
+                .model(VideoGenerationService.TEXT_TO_VIDEO_MODEL)
+                .state(state)
+                .build();
+        when(repository.lockByTaskId("task")).thenReturn(Optional.of(job));
+        when(repository.lockByCorrelationId("generation")).thenReturn(Optional.of(job));
+        return job;
+    }
+}
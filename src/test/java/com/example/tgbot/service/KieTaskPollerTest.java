@@ -0,0 +1,126 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.repository.GenerationJobRepository;
+import com.example.tgbot.web.RecordInfoResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class KieTaskPollerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private KieAiClient kieAiClient;
+    private GenerationJobRepository repository;
+    private KieTaskPoller poller;
+
+    @BeforeEach
+    void setUp() {
+        kieAiClient = mock(KieAiClient.class);
+        when(kieAiClient.isCallbackEnabled()).thenReturn(true);
+        repository = mock(GenerationJobRepository.class);
+        poller = new KieTaskPoller(kieAiClient, new CompletionLatencyHistogram(), repository, objectMapper,
+                new SimpleMeterRegistry(), Duration.ofSeconds(15), Duration.ofSeconds(15), Duration.ofMinutes(2),
+                Duration.ofMinutes(30), 20, Duration.ZERO, 16, 3, Duration.ofMinutes(5));
+    }
+
+    @Test
+    void callbackCompletesPendingTask() {
+        CompletableFuture<RecordInfoResponse> result = poller.register("task-1", VideoGenerationService.TEXT_TO_VIDEO_MODEL, Instant.now()).toFuture();
+
+        assertThat(poller.resolve(response("task-1", "success"))).isTrue();
+
+        assertThat(result).isCompleted();
+        assertThat(poller.pendingCount()).isZero();
+        verifyNoInteractions(repository);
+    }
+
+    @Test
+    void finishedCallbackForAnotherReplicaIsStored() {
+        when(repository.storeCallbackPayload(eq("task-2"), anyString())).thenReturn(1);
+
+        assertThat(poller.resolve(response("task-2", "success"))).isTrue();
+
+        verify(repository).storeCallbackPayload(eq("task-2"), contains("task-2"));
+    }
+
+    @Test
+    void unfinishedCallbackIsNotStored() {
+        assertThat(poller.resolve(response("task-3", "generating"))).isFalse();
+
+        verifyNoInteractions(repository);
+    }
+
+    @Test
+    void ownerPicksUpForwardedCallback() throws Exception {
+        CompletableFuture<RecordInfoResponse> result = poller.register("task-4", VideoGenerationService.TEXT_TO_VIDEO_MODEL, Instant.now()).toFuture();
+        GenerationJob job = GenerationJob.builder()
+                .taskId("task-4")
+                .callbackPayload(objectMapper.writeValueAsString(response("task-4", "success")))
+                .build();
+        when(repository.findAllByTaskIdInAndCallbackPayloadIsNotNull(List.of("task-4"))).thenReturn(List.of(job));
+
+        poller.pickUpForwardedCallbacks();
+
+        assertThat(result).isCompleted();
+        assertThat(result.get().getData().getTaskId()).isEqualTo("task-4");
+    }
+
+    @Test
+    void failedCallbackFailsPendingTask() {
+        Mono<RecordInfoResponse> result = poller.register("task-5", VideoGenerationService.TEXT_TO_VIDEO_MODEL, Instant.now());
+        CompletableFuture<RecordInfoResponse> future = result.toFuture();
+
+        poller.resolve(response("task-5", "fail"));
+
+        assertThat(future).isCompletedExceptionally();
+    }
+
+    @Test
+    void overdueResumedTaskIsPolledBeforeDeadline() {
+        when(kieAiClient.fetchTaskStatus(eq("task-6"), anyString())).thenReturn(Mono.just(response("task-6", "success")));
+        CompletableFuture<RecordInfoResponse> result = poller.register("task-6", VideoGenerationService.TEXT_TO_VIDEO_MODEL,
+                Instant.now().minus(Duration.ofHours(2))).toFuture();
+
+        poller.tick();
+
+        verify(kieAiClient).fetchTaskStatus(eq("task-6"), anyString());
+        assertThat(result).isCompleted();
+        assertThat(result).isNotCompletedExceptionally();
+    }
+
+    @Test
+    void overdueTaskStillRunningIsNotFailedByFirstTick() {
+        when(kieAiClient.fetchTaskStatus(eq("task-7"), anyString())).thenReturn(Mono.just(response("task-7", "generating")));
+        CompletableFuture<RecordInfoResponse> result = poller.register("task-7", VideoGenerationService.TEXT_TO_VIDEO_MODEL,
+                Instant.now().minus(Duration.ofHours(2))).toFuture();
+
+        poller.tick();
+
+        verify(kieAiClient).fetchTaskStatus(eq("task-7"), anyString());
+        assertThat(result).isNotDone();
+    }
+
+    private static RecordInfoResponse response(String taskId, String state) {
+        RecordInfoResponse.DataBlock data = new RecordInfoResponse.DataBlock();
+        data.setTaskId(taskId);
+        data.setState(state);
+        data.setResultJson("{\"resultUrls\":[\"https://example.com/video.mp4\"]}");
+        data.setFailMsg(state.equals("fail") ? "boom" : null);
+        RecordInfoResponse response = new RecordInfoResponse();
+        response.setCode(200);
+        response.setData(data);
+        return response;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.tgbot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Математика GCRA и корректность таблицы под конкуренцией: сколько запросов прошло,
+ * столько и должно было пройти, даже когда сегменты перестраиваются и чистятся параллельно.
+ */
+class RateLimiterServiceTest {
+
+    private static final int THREADS = 8;
+    private static final long HOT_USER = 42L;
+
+    @Test
+    void burstIsFollowedByEvenRefill() throws InterruptedException {
+        RateLimiterService limiter = new RateLimiterService(5, Duration.ofMillis(500));
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(limiter.tryConsume(HOT_USER)).isTrue();
+        }
+        assertThat(limiter.tryConsume(HOT_USER)).isFalse();
+
+        // Один запрос на каждые 500 / 5 = 100 мс, без ожидания целого периода
+        Thread.sleep(120);
+        assertThat(limiter.tryConsume(HOT_USER)).isTrue();
+        assertThat(limiter.tryConsume(HOT_USER)).isFalse();
+    }
+
+    @Test
+    void concurrentRequestsOfOneUserGetExactlyTheBurst() throws Exception {
+        RateLimiterService limiter = new RateLimiterService(1000, Duration.ofDays(1));
+
+        int allowed = sum(runConcurrently(() -> count(limiter, HOT_USER, 1000)));
+
+        assertThat(allowed).isEqualTo(1000);
+    }
+
+    @Test
+    void rebuildRacingWithConsumeLosesNoState() throws Exception {
+        RateLimiterService limiter = new RateLimiterService(1000, Duration.ofDays(1));
+        AtomicInteger thread = new AtomicInteger();
+
+        // Новые пользователи всё время переполняют сегменты, и горячий пользователь
+        // попадает на перестройку своей таблицы
+        List<Integer> allowed = runConcurrently(() -> {
+            long firstUser = (thread.incrementAndGet() + 1L) << 32;
+            int hot = 0;
+            for (int i = 0; i < 20_000; i++) {
+                assertThat(limiter.tryConsume(firstUser + i)).isTrue();
+                if (i % 10 == 0 && limiter.tryConsume(HOT_USER)) {
+                    hot++;
+                }
+            }
+            return hot;
+        });
+
+        assertThat(sum(allowed)).isEqualTo(1000);
+        assertThat(limiter.trackedUsers()).isEqualTo(THREADS * 20_000 + 1);
+    }
+
+    @Test
+    void sweepForgetsOnlyUsersWithFullBucket() throws InterruptedException {
+        RateLimiterService limiter = new RateLimiterService(1, Duration.ofMillis(50));
+        for (long userId = 1; userId <= 1000; userId++) {
+            limiter.tryConsume(userId);
+        }
+        Thread.sleep(100);
+        RateLimiterService busy = new RateLimiterService(1, Duration.ofDays(1));
+        busy.tryConsume(HOT_USER);
+
+        limiter.sweepIdle();
+        busy.sweepIdle();
+
+        assertThat(limiter.trackedUsers()).isZero();
+        assertThat(busy.trackedUsers()).isEqualTo(1);
+        assertThat(busy.tryConsume(HOT_USER)).isFalse();
+    }
+
+    @Test
+    void sweepRacingWithConsumeKeepsLimits() throws Exception {
+        RateLimiterService limiter = new RateLimiterService(500, Duration.ofDays(1));
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread sweeper = new Thread(() -> {
+            while (running.get()) {
+                limiter.sweepIdle();
+            }
+        });
+        sweeper.start();
+        try {
+            int allowed = sum(runConcurrently(() -> count(limiter, HOT_USER, 500)));
+
+            assertThat(allowed).isEqualTo(500);
+        } finally {
+            running.set(false);
+            sweeper.join();
+        }
+        assertThat(limiter.tryConsume(HOT_USER)).isFalse();
+    }
+
+    private static int count(RateLimiterService limiter, long userId, int attempts) {
+        int allowed = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (limiter.tryConsume(userId)) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Запускает task в {@link #THREADS} потоках одновременно и собирает результаты.
+     */
+    private static List<Integer> runConcurrently(Callable<Integer> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            List<Integer> results = new ArrayList<>();
+            for (Future<Integer> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int sum(List<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).sum();
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.PostgresContainerConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Всплеск регистраций: 50 000 новых пользователей присылают /start одновременно.
+ * Пул соединений и пакетная выдача id — как в профиле prod, БД — PostgreSQL в контейнере.
+ * Запуск: mvn -Pload test.
+ */
+@Tag("load")
+@Slf4j
+@DataJpaTest
+@ActiveProfiles("prod")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({PostgresContainerConfig.class, StartSurgeLoadTest.Config.class, UserService.class, BalanceJournal.class})
+class StartSurgeLoadTest {
+
+    private static final int USERS = 50_000;
+    /** Больше, чем пул обработки апдейтов на Java 17: на Java 21 апдейты идут на виртуальных потоках. */
+    private static final int THREADS = 200;
+    private static final long FIRST_TELEGRAM_ID = 7_000_000_000L;
+
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void surgeOfNewUsers() throws Exception {
+        long[] latencies = new long[USERS];
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>(USERS);
+        try {
+            for (int i = 0; i < USERS; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    long begin = System.nanoTime();
+                    userService.findOrCreateUser(FIRST_TELEGRAM_ID + index);
+                    latencies[index] = System.nanoTime() - begin;
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.MINUTES);
+            }
+            long elapsed = System.nanoTime() - begin;
+
+            Arrays.sort(latencies);
+            log.info(String.format("%d users in %d ms (%d per second), latency p50=%.1f ms, p99=%.1f ms, max=%.1f ms",
+                    USERS, TimeUnit.NANOSECONDS.toMillis(elapsed), USERS * 1_000_000_000L / elapsed,
+                    millis(latencies[USERS / 2]), millis(latencies[USERS * 99 / 100]), millis(latencies[USERS - 1])));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Integer created = jdbcTemplate.queryForObject(
+                "SELECT COUNT(DISTINCT id) FROM users WHERE telegram_id >= ? AND telegram_id < ?",
+                Integer.class, FIRST_TELEGRAM_ID, FIRST_TELEGRAM_ID + USERS);
+        assertThat(created).isEqualTo(USERS);
+        // Ожидание соединения дольше connection-timeout пула уже закончилось бы исключением выше
+        assertThat(millis(latencies[USERS * 99 / 100])).isLessThan(1_000);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    @TestConfiguration(proxyBeanMethods = false)
+    static class Config {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
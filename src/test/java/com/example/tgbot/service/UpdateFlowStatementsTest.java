@@ -0,0 +1,171 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.PostgresContainerConfig;
+import com.example.tgbot.bot.BotState;
+import com.example.tgbot.bot.JdbcSessionStore;
+import com.example.tgbot.bot.UserSession;
+import com.example.tgbot.model.BalanceEventType;
+import com.example.tgbot.model.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.ttddyy.dsproxy.QueryCount;
+import net.ttddyy.dsproxy.QueryCountHolder;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Сколько SQL-запросов уходит в БД на один апдейт в основных сценариях. Апдейт воспроизводится
+ * так же, как в SoraVideoBot.processUpdate: сессия, пользователь, работа обработчика, запись сессии.
+ * Сессии хранятся в jdbc-хранилище — худший для БД вариант.
+ * <p>
+ * Запросы считает datasource-proxy, поэтому в счёт попадают и Hibernate, и JdbcTemplate.
+ */
+@DataJpaTest(properties = "telegram.bot.sessions.store=jdbc")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({PostgresContainerConfig.class, UpdateFlowStatementsTest.Config.class,
+        UserService.class, BalanceJournal.class, VideoFileIdCache.class, GenerationJobService.class,
+        JdbcSessionStore.class})
+class UpdateFlowStatementsTest {
+
+    private static final long WARM_UP_CHAT_ID = 1L;
+    private static final AtomicLong CHAT_IDS = new AtomicLong(1_000);
+
+    @Autowired
+    private JdbcSessionStore sessionStore;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private VideoFileIdCache videoFileIdCache;
+    @Autowired
+    private GenerationJobService generationJobService;
+
+    @BeforeEach
+    void warmUp() {
+        // Первый пользователь забирает блок id из users_seq, дальше вставки идут без nextval
+        userService.findOrCreateUser(WARM_UP_CHAT_ID);
+        QueryCountHolder.clear();
+    }
+
+    @Test
+    void startFromNewUser() {
+        long chatId = CHAT_IDS.incrementAndGet();
+
+        update(chatId, (user, session) -> session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION));
+
+        // Сессия и пользователь ищутся и создаются
+        assertStatements(2, 2, 0);
+    }
+
+    @Test
+    void startFromKnownUser() {
+        long chatId = CHAT_IDS.incrementAndGet();
+        update(chatId, (user, session) -> session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION));
+        QueryCountHolder.clear();
+
+        update(chatId, (user, session) -> session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION));
+
+        // Сверка версии сессии и её запись; пользователь берётся из кэша
+        assertStatements(1, 0, 1);
+    }
+
+    @Test
+    void menuCallback() {
+        long chatId = CHAT_IDS.incrementAndGet();
+        update(chatId, (user, session) -> session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION));
+        QueryCountHolder.clear();
+
+        update(chatId, (user, session) -> session.setState(BotState.WAITING_FOR_FORMAT_SELECTION));
+
+        assertStatements(1, 0, 1);
+    }
+
+    @Test
+    void giftCallback() {
+        long chatId = CHAT_IDS.incrementAndGet();
+        update(chatId, (user, session) -> session.setState(BotState.WAITING_FOR_PACKAGE_SELECTION));
+        QueryCountHolder.clear();
+
+        update(chatId, (user, session) -> userService.addBalance(user, 1, BalanceEventType.GIFT));
+
+        // Начисление — один UPDATE ... RETURNING и событие в журнале в той же транзакции
+        assertStatements(1, 1, 2);
+    }
+
+    @Test
+    void textGeneration() {
+        long chatId = CHAT_IDS.incrementAndGet();
+        update(chatId, (user, session) -> {
+            userService.addBalance(user, 1, BalanceEventType.GIFT);
+            session.setState(BotState.WAITING_FOR_TEXT_DESCRIPTION);
+            session.setSelectedFormat("16:9");
+        });
+        userService.findOrCreateUser(chatId);
+        QueryCountHolder.clear();
+
+        update(chatId, (user, session) -> {
+            String prompt = "Кот в шляпе идёт по мосту #" + chatId;
+            videoFileIdCache.find(chatId, VideoGenerationService.TEXT_TO_VIDEO_MODEL, session.getSelectedFormat(), prompt);
+            generationJobService.reserve(user, chatId, VideoGenerationService.TEXT_TO_VIDEO_MODEL,
+                    session.getSelectedFormat(), prompt);
+            session.setState(BotState.INITIAL);
+        });
+
+        // Поиск готового видео по промпту, списание с событием в журнале и задача в PENDING
+        assertStatements(2, 2, 2);
+    }
+
+    private void update(long chatId, BiConsumer<User, UserSession> handler) {
+        UserSession session = sessionStore.get(chatId);
+        User user = userService.findOrCreateUser(chatId);
+        handler.accept(user, session);
+        sessionStore.put(chatId, session);
+    }
+
+    private static void assertStatements(int selects, int inserts, int updates) {
+        QueryCount count = QueryCountHolder.getGrandTotal();
+        assertThat(count.getSelect()).as("selects").isEqualTo(selects);
+        assertThat(count.getInsert()).as("inserts").isEqualTo(inserts);
+        assertThat(count.getUpdate()).as("updates").isEqualTo(updates);
+        assertThat(count.getTotal()).as("total").isEqualTo(selects + inserts + updates);
+    }
+
+    @TestConfiguration(proxyBeanMethods = false)
+    static class Config {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        static BeanPostProcessor countingDataSource() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (bean instanceof DataSource dataSource && !(bean instanceof ProxyDataSource)) {
+                        return ProxyDataSourceBuilder.create(dataSource).name("counted").countQuery().build();
+                    }
+                    return bean;
+                }
+            };
+        }
+    }
+}
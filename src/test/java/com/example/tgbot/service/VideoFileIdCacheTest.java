@@ -0,0 +1,53 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.repository.GenerationJobRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class VideoFileIdCacheTest {
+
+    private static final String MODEL = VideoGenerationService.TEXT_TO_VIDEO_MODEL;
+    private static final GeneratedVideo VIDEO = new GeneratedVideo("task-1", MODEL, "16:9", "Кот в шляпе",
+            "https://example.com/video.mp4");
+
+    private GenerationJobRepository repository;
+    private VideoFileIdCache cache;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(GenerationJobRepository.class);
+        when(repository.findFirstByChatIdAndModelAndFormatAndPromptAndTelegramFileIdIsNotNullOrderByCompletedAtDesc(
+                anyLong(), any(), any(), any())).thenReturn(Optional.empty());
+        cache = new VideoFileIdCache(repository, new SimpleMeterRegistry(), Duration.ofHours(1), 100);
+    }
+
+    @Test
+    void videoIsReusedOnlyInTheSameChat() {
+        cache.remember(1L, VIDEO, "file-1");
+
+        assertThat(cache.find(1L, MODEL, "16:9", "Кот в шляпе")).contains("file-1");
+        assertThat(cache.find(2L, MODEL, "16:9", "Кот в шляпе")).isEmpty();
+        verify(repository).findFirstByChatIdAndModelAndFormatAndPromptAndTelegramFileIdIsNotNullOrderByCompletedAtDesc(
+                2L, MODEL, "16:9", "Кот в шляпе");
+    }
+
+    @Test
+    void storedFileIdIsLookedUpByChat() {
+        GenerationJob job = GenerationJob.builder().telegramFileId("file-2").build();
+        when(repository.findFirstByChatIdAndModelAndFormatAndPromptAndTelegramFileIdIsNotNullOrderByCompletedAtDesc(
+                3L, MODEL, "9:16", "Закат")).thenReturn(Optional.of(job));
+
+        assertThat(cache.find(3L, MODEL, "9:16", "Закат")).contains("file-2");
+        assertThat(cache.find(4L, MODEL, "9:16", "Закат")).isEmpty();
+    }
+}
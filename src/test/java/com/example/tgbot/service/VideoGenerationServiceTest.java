@@ -0,0 +1,57 @@
+package com.example.tgbot.service;
+
+import com.example.tgbot.model.GenerationJob;
+import com.example.tgbot.model.GenerationJobState;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.*;
+
+class VideoGenerationServiceTest {
+
+    @Test
+    void resumedSucceededJobIsDeliveredWithoutPolling() {
+        KieTaskPoller poller = mock(KieTaskPoller.class);
+        GenerationConcurrencyLimiter limiter = mock(GenerationConcurrencyLimiter.class);
+        VideoGenerationService service = new VideoGenerationService(new ObjectMapper(), mock(KieAiClient.class),
+                poller, mock(GenerationJobService.class), limiter);
+        GenerationJob job = GenerationJob.builder()
+                .taskId("task")
+                .chatId(1L)
+                .model(VideoGenerationService.TEXT_TO_VIDEO_MODEL)
+                .format("16:9")
+                .prompt("cat")
+                .state(GenerationJobState.SUCCEEDED)
+                .resultUrl("https://example.com/video.mp4")
+                .createdAt(Instant.now())
+                .build();
+
+        GeneratedVideo video = service.resumeJob(job).block();
+
+        assertThat(video).isEqualTo(new GeneratedVideo("task", VideoGenerationService.TEXT_TO_VIDEO_MODEL, "16:9", "cat",
+                "https://example.com/video.mp4"));
+        verifyNoInteractions(poller, limiter);
+    }
+
+    @Test
+    void resumedPendingJobFailsWithoutCreatingTask() {
+        KieAiClient kieAiClient = mock(KieAiClient.class);
+        GenerationConcurrencyLimiter limiter = mock(GenerationConcurrencyLimiter.class);
+        VideoGenerationService service = new VideoGenerationService(new ObjectMapper(), kieAiClient,
+                mock(KieTaskPoller.class), mock(GenerationJobService.class), limiter);
+        GenerationJob job = GenerationJob.builder()
+                .correlationId("generation")
+                .chatId(1L)
+                .model(VideoGenerationService.TEXT_TO_VIDEO_MODEL)
+                .state(GenerationJobState.PENDING)
+                .build();
+
+        assertThatThrownBy(() -> service.resumeJob(job).block())
+                .hasMessageContaining("interrupted before the Kie.ai task was created");
+        verifyNoInteractions(kieAiClient, limiter);
+    }
+}